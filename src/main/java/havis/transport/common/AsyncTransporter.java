@@ -0,0 +1,40 @@
+package havis.transport.common;
+
+import java.util.Map;
+
+/**
+ * Transporter which completes sends asynchronously, e.g. after collecting
+ * several messages into one request
+ */
+interface AsyncTransporter {
+
+	/**
+	 * @return whether sends should use
+	 *         {@link #send(Object, String, String, Map, SendCallback)}
+	 */
+	boolean isAsync();
+
+	/**
+	 * Send the message asynchronously, the outcome is reported to the callback
+	 * exactly once, possibly on another thread
+	 * 
+	 * @param message
+	 *            the message
+	 * @param name
+	 *            the name
+	 * @param path
+	 *            the path which extends the URI or null
+	 * @param properties
+	 *            the properties containing additional settings for transport
+	 * @param callback
+	 *            the callback for the outcome
+	 */
+	void send(Object message, String name, String path, Map<String, String> properties, SendCallback callback);
+
+	/**
+	 * Send the messages collected so far without waiting for further
+	 * messages, e.g. when failed messages are repeated together
+	 */
+	default void flush() {
+	}
+}
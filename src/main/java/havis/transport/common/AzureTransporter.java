@@ -1,15 +1,21 @@
 package havis.transport.common;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,45 +38,140 @@ import havis.transport.TransportException;
 import havis.transport.Transporter;
 import havis.transport.ValidationException;
 
-class AzureTransporter<T> extends StreamTransporter<T> {
+class AzureTransporter<T> extends StreamTransporter<T> implements AsyncTransporter {
 
 	private final static Logger log = Logger.getLogger(AzureTransporter.class.getName());
 
+	/**
+	 * Maximum number of events waiting for acknowledgement by the hub
+	 */
+	final static String MAX_IN_FLIGHT_PROPERTY = Transporter.PREFIX + "Azure.MaxInFlight";
+
+	/**
+	 * Protocol of the device client, one of MQTT, MQTT_WS, AMQPS, AMQPS_WS
+	 * or HTTPS. Queued events are sent in batches using HTTPS.
+	 */
+	final static String PROTOCOL_PROPERTY = Transporter.PREFIX + "Azure.Protocol";
+
+	private final static int DEFAULT_MAX_IN_FLIGHT = 100;
+	// the hub accepts batches of up to 256 KB
+	private final static int MAX_BATCH_SIZE = 255 * 1024;
+
+	private final static AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Operations of the device client used by the transporter
+	 */
+	interface Client {
+		void open() throws IOException;
+
+		void closeNow() throws IOException;
+
+		void sendEventAsync(Message message, IotHubEventCallback callback, Object context);
+
+		void sendEventBatchAsync(List<Message> messages, IotHubEventCallback callback, Object context);
+	}
+
+	/**
+	 * Event waiting for acknowledgement
+	 */
+	private static class Event {
+		private final Message message;
+		private final SendCallback callback;
+
+		private Event(Message message, SendCallback callback) {
+			this.message = message;
+			this.callback = callback;
+		}
+	}
+
 	private long timeout = 1000;
 	private long sasTokenExpiryTime = 2400;
 	private IotHubClientProtocol protocol = IotHubClientProtocol.MQTT;
 	private String pathToCertificate = null;
 	private String connectionString;
-	private DeviceClient client;
-	private StreamCallback callback;
+	private final AtomicReference<Client> client = new AtomicReference<>();
+	// the client which was opened, guarded by this
+	private Client opened;
+	private volatile StreamCallback callback;
+	private Semaphore inFlight;
+
+	private final Object batchLock = new Object();
+	private final List<Event> queue = new ArrayList<>();
+	private boolean batching;
+	// sends the next batch, since the client must not be opened on the
+	// callback thread of the client
+	private ExecutorService batcher;
+
+	private IotHubEventCallback eventCallback = new IotHubEventCallback() {
+		@Override
+		public void execute(IotHubStatusCode status, Object context) {
+			Event event = (Event) context;
+			inFlight.release();
+			completed(event.callback, status);
+		}
+	};
+
+	private IotHubEventCallback batchCallback = new IotHubEventCallback() {
+		@Override
+		@SuppressWarnings("unchecked")
+		public void execute(IotHubStatusCode status, Object context) {
+			List<Event> batch = (List<Event>) context;
+			inFlight.release(batch.size());
+			for (Event event : batch)
+				completed(event.callback, status);
+			try {
+				batcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendBatch();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// disposed
+				failQueue();
+			}
+		}
+	};
 
 	private MessageCallback messageCallback = new MessageCallback() {
 		@Override
 		public IotHubMessageResult execute(Message message, Object context) {
-			if (callback != null) {
-				callback.arrived(null, new ByteArrayInputStream(message.getBytes()));
-				return IotHubMessageResult.COMPLETE;
+			StreamCallback current = callback;
+			if (current != null) {
+				// abandoned messages will be redelivered by the hub
+				return current.arrived(null, new ByteArrayInputStream(message.getBytes())) ? IotHubMessageResult.COMPLETE : IotHubMessageResult.ABANDON;
 			} else {
 				return IotHubMessageResult.REJECT;
 			}
 		}
 	};
 
-	private IotHubConnectionStatusChangeCallback statusChangeCallback = new IotHubConnectionStatusChangeCallback() {
+	/**
+	 * Replaces the client after an unexpected disconnect, the context is the
+	 * client reporting its status
+	 */
+	final IotHubConnectionStatusChangeCallback statusChangeCallback = new IotHubConnectionStatusChangeCallback() {
 		@Override
 		public void execute(IotHubConnectionStatus status, IotHubConnectionStatusChangeReason reason, Throwable t, Object o) {
 			if (status == IotHubConnectionStatus.DISCONNECTED) {
+				Client current = client.get();
+				if (current == null || current != o)
+					// disposed or already replaced
+					return;
 				log.info("Attempting to close azure client connection because of unexpected disconnect" + (t != null ? (": " + t.toString()) : ""));
 				// workaround, see:
 				// https://github.com/Azure/azure-iot-sdk-java/issues/603#issuecomment-600896578
 				try {
-					client.closeNow();
+					current.closeNow();
 				} catch (IOException e) {
 					// ignore
 				}
 				try {
-					client = createClient();
-					log.info("Successfully closed azure client connection because of unexpected disconnect" + (t != null ? (": " + t.toString()) : ""));
+					// the new client is opened by the next send, the callback
+					// must not wait for a send which is opening the client
+					if (client.compareAndSet(current, createClient()))
+						log.info("Successfully closed azure client connection because of unexpected disconnect" + (t != null ? (": " + t.toString()) : ""));
 				} catch (ValidationException e) {
 					log.log(Level.SEVERE, "Failed to recreate azure client connection: " + e.toString(), e);
 				}
@@ -88,6 +189,7 @@ class AzureTransporter<T> extends StreamTransporter<T> {
 		if (uri == null)
 			throw new ValidationException("URI must not be null");
 		boolean connectDirectly = true;
+		int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
 		this.connectionString = uri.getSchemeSpecificPart();
 		while (this.connectionString.length() > 0 && this.connectionString.charAt(0) == '/')
 			this.connectionString = this.connectionString.substring(1);
@@ -112,6 +214,22 @@ class AzureTransporter<T> extends StreamTransporter<T> {
 							throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'", e);
 						}
 						break;
+					case MAX_IN_FLIGHT_PROPERTY:
+						try {
+							maxInFlight = Integer.parseInt(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid max in flight value '" + entry.getValue() + "'", e);
+						}
+						if (maxInFlight < 1)
+							throw new ValidationException("Value '" + entry.getValue() + "' for max in flight must be greater than zero");
+						break;
+					case PROTOCOL_PROPERTY:
+						try {
+							protocol = IotHubClientProtocol.valueOf(entry.getValue().trim().toUpperCase());
+						} catch (IllegalArgumentException | NullPointerException e) {
+							throw new ValidationException("Invalid protocol value '" + entry.getValue() + "'", e);
+						}
+						break;
 					default:
 						throw new ValidationException("Unknown property key '" + key + "'");
 					}
@@ -119,18 +237,57 @@ class AzureTransporter<T> extends StreamTransporter<T> {
 			}
 		}
 
-		client = createClient();
+		inFlight = new Semaphore(maxInFlight);
+		if (protocol == IotHubClientProtocol.HTTPS) {
+			batcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Transport-Azure-Batch-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		client.set(createClient());
 
 		if (connectDirectly) {
 			try {
-				client.open();
+				open();
 			} catch (IOException e) {
 				throw new ValidationException("Failed to establish connection: " + e.getMessage(), e);
 			}
 		}
 	}
 
-	private DeviceClient createClient() throws ValidationException {
+	/**
+	 * Open the current client once, it is kept until disposed or lost. A
+	 * client replaced while it was opened is closed again.
+	 * 
+	 * @return the opened client
+	 */
+	private synchronized Client open() throws IOException {
+		while (true) {
+			Client client = this.client.get();
+			if (client == null)
+				throw new IOException("Azure client not initialized");
+			if (client == opened)
+				return client;
+			client.open();
+			opened = client;
+			if (this.client.get() != client)
+				client.closeNow();
+		}
+	}
+
+	/**
+	 * Create a device client, the status change callback gets the client as
+	 * context
+	 * 
+	 * @return the client, not opened
+	 * @throws ValidationException
+	 *             if the connection string is invalid
+	 */
+	Client createClient() throws ValidationException {
 		Logger.getLogger("com.microsoft.azure.sdk.iot.device.transport.IotHubTransport").setLevel(Level.OFF);
 		Logger.getLogger("com.microsoft.azure.sdk.iot.device.transport.mqtt.MqttIotHubConnection").setLevel(Level.OFF);
 		final DeviceClient c;
@@ -143,51 +300,187 @@ class AzureTransporter<T> extends StreamTransporter<T> {
 			c.setOption("SetCertificatePath", this.pathToCertificate);
 		}
 		c.setOption("SetSASTokenExpiryTime", this.sasTokenExpiryTime);
-		c.registerConnectionStatusChangeCallback(statusChangeCallback, null);
 		c.setMessageCallback(messageCallback, null);
-		return c;
+		Client client = new Client() {
+			@Override
+			public void open() throws IOException {
+				c.open();
+			}
+
+			@Override
+			public void closeNow() throws IOException {
+				c.closeNow();
+			}
+
+			@Override
+			public void sendEventAsync(Message message, IotHubEventCallback callback, Object context) {
+				c.sendEventAsync(message, callback, context);
+			}
+
+			@Override
+			public void sendEventBatchAsync(List<Message> messages, IotHubEventCallback callback, Object context) {
+				c.sendEventBatchAsync(messages, callback, context);
+			}
+		};
+		c.registerConnectionStatusChangeCallback(statusChangeCallback, client);
+		return client;
 	}
 
 	@Override
 	protected void send(Marshaller<T> marshaller, T message) throws TransportException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final TransportException[] error = new TransportException[1];
+		send(marshaller, message, new SendCallback() {
+			@Override
+			public void completed() {
+				latch.countDown();
+			}
+
+			@Override
+			public void failed(TransportException e) {
+				error[0] = e;
+				latch.countDown();
+			}
+		});
 		try {
-			final AtomicReference<IotHubStatusCode> messageStatus = new AtomicReference<IotHubStatusCode>(IotHubStatusCode.MESSAGE_EXPIRED);
-			final CountDownLatch latch = new CountDownLatch(1);
-			client.open();
+			// expired messages are reported by the client
+			if (!latch.await(this.timeout * 2, TimeUnit.MILLISECONDS))
+				throw new TransportConnectionException("Azure transport failed: Message status was " + IotHubStatusCode.MESSAGE_EXPIRED.name());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("Azure transport was interrupted", e);
+		}
+		if (error[0] != null)
+			throw error[0];
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
 
-			ByteArrayOutputStream data = new ByteArrayOutputStream();
-			marshaller.marshal(message, data);
-			Message msg = new Message(data.toByteArray());
-			msg.setMessageId(UUID.randomUUID().toString());
+	@SuppressWarnings("unchecked")
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, SendCallback callback) {
+		RawPayload payload = RawPayload.of(message);
+		if (payload != null)
+			send(payload.<T> getMarshaller(), null, callback);
+		else
+			send(getMarshaller(), (T) message, callback);
+	}
+
+	/**
+	 * Queue the event, waits for a free slot of the in flight window. The
+	 * callback completes when the hub acknowledged the event.
+	 */
+	private void send(Marshaller<T> marshaller, T message, SendCallback callback) {
+		Client client;
+		Message msg;
+		try {
+			client = open();
+			try (MessageBuffer buffer = MessageBuffer.get()) {
+				marshaller.marshal(message, buffer);
+				// the message is sent asynchronously, hand over a copy
+				msg = new Message(buffer.toByteArray());
+			}
 			msg.setExpiryTime(this.timeout);
 			msg.setContentEncoding("UTF-8");
 			msg.setContentTypeFinal(getDefaultMimeType());
+			inFlight.acquire();
+		} catch (TransportException e) {
+			callback.failed(e);
+			return;
+		} catch (IOException e) {
+			callback.failed(new TransportConnectionException("Azure transport failed: " + e.getMessage(), e));
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			callback.failed(new TransportException("Azure transport was interrupted", e));
+			return;
+		} catch (Throwable e) {
+			callback.failed(new TransportException("Azure transport failed: " + e.toString(), e));
+			return;
+		}
 
-			client.sendEventAsync(msg, new IotHubEventCallback() {
-				@Override
-				public void execute(IotHubStatusCode status, Object context) {
-					messageStatus.set(status);
-					latch.countDown();
-				}
-			}, null);
-
+		Event event = new Event(msg, callback);
+		if (protocol == IotHubClientProtocol.HTTPS) {
+			// events queued while a batch is in flight are sent with the next
+			// batch
+			synchronized (batchLock) {
+				queue.add(event);
+				if (batching)
+					return;
+				batching = true;
+			}
+			sendBatch();
+		} else {
 			try {
-				latch.await(this.timeout * 2, TimeUnit.MILLISECONDS);
-			} catch (InterruptedException e) {
-				// was cancelled
+				client.sendEventAsync(msg, eventCallback, event);
+			} catch (RuntimeException e) {
+				inFlight.release();
+				callback.failed(new TransportConnectionException("Azure transport failed: " + e.toString(), e));
 			}
+		}
+	}
 
-			if (messageStatus.get() != IotHubStatusCode.OK && messageStatus.get() != IotHubStatusCode.OK_EMPTY) {
-				throw new TransportConnectionException("Azure transport failed: Message status was " + messageStatus.get().name());
-			} else {
-				log.fine("Azure message was sent: " + messageStatus.get().name());
+	/**
+	 * Send the queued events as one batch
+	 */
+	private void sendBatch() {
+		List<Event> batch = new ArrayList<>();
+		synchronized (batchLock) {
+			int size = 0;
+			while (!queue.isEmpty() && (batch.isEmpty() || size + queue.get(0).message.getBytes().length <= MAX_BATCH_SIZE)) {
+				Event event = queue.remove(0);
+				size += event.message.getBytes().length;
+				batch.add(event);
+			}
+			if (batch.isEmpty()) {
+				batching = false;
+				return;
 			}
-		} catch (TransportException e) {
-			throw e;
-		} catch (IOException e) {
-			throw new TransportConnectionException("Azure transport failed: " + e.getMessage(), e);
-		} catch (Throwable e) {
-			throw new TransportException("Azure transport failed: " + e.toString(), e);
+		}
+		List<Message> messages = new ArrayList<>(batch.size());
+		for (Event event : batch)
+			messages.add(event.message);
+		try {
+			open().sendEventBatchAsync(messages, batchCallback, batch);
+		} catch (IOException | RuntimeException e) {
+			failed(batch);
+			failQueue();
+		}
+	}
+
+	/**
+	 * Fail the queued events, e.g. when the client could not be opened
+	 */
+	private void failQueue() {
+		while (true) {
+			List<Event> batch;
+			synchronized (batchLock) {
+				if (queue.isEmpty()) {
+					batching = false;
+					return;
+				}
+				batch = new ArrayList<>(queue);
+				queue.clear();
+			}
+			failed(batch);
+		}
+	}
+
+	private void failed(List<Event> batch) {
+		inFlight.release(batch.size());
+		for (Event event : batch)
+			completed(event.callback, IotHubStatusCode.ERROR);
+	}
+
+	private void completed(SendCallback callback, IotHubStatusCode status) {
+		if (status != IotHubStatusCode.OK && status != IotHubStatusCode.OK_EMPTY) {
+			callback.failed(new TransportConnectionException("Azure transport failed: Message status was " + status.name()));
+		} else {
+			log.fine("Azure message was sent: " + status.name());
+			callback.completed();
 		}
 	}
 
@@ -207,14 +500,20 @@ class AzureTransporter<T> extends StreamTransporter<T> {
 
 	@Override
 	public void dispose() {
+		super.dispose();
+		Client client;
+		synchronized (this) {
+			client = this.client.getAndSet(null);
+			opened = null;
+		}
 		if (client != null) {
 			try {
 				client.closeNow();
 			} catch (IOException e) {
 				log.log(Level.SEVERE, "Failed to close azure client connection", e);
-			} finally {
-				client = null;
 			}
 		}
+		if (batcher != null)
+			batcher.shutdown();
 	}
 }
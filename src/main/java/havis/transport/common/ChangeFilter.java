@@ -0,0 +1,272 @@
+package havis.transport.common;
+
+import havis.transport.ValidationException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Filter to suppress messages which did not change since the last delivery.
+ * Messages are compared by a hash of their JSON representation, optionally
+ * restricted to a set of fields. The last hash is kept per path and per key
+ * field value, so a single messenger can serve many logical streams. Raw
+ * payloads are compared as a whole, fields and key don't apply to them.
+ */
+class ChangeFilter {
+
+	private final static int DEFAULT_CACHE_SIZE = 1000;
+
+	private final static ObjectMapper mapper = new ObjectMapper();
+	static {
+		// ensure a stable representation for hashing
+		mapper.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+		mapper.configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+		mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+	}
+
+	/**
+	 * Fingerprint of a message
+	 */
+	static class Fingerprint {
+		private final String key;
+		private final byte[] hash;
+		private Delivery dispatched;
+
+		private Fingerprint(String key, byte[] hash) {
+			this.key = key;
+			this.hash = hash;
+		}
+	}
+
+	private static class Delivery {
+		private final byte[] hash;
+		private final long time;
+		// last delivery while the message is pending
+		private Delivery previous;
+
+		private Delivery(byte[] hash, long time, Delivery previous) {
+			this.hash = hash;
+			this.time = time;
+			this.previous = previous;
+		}
+	}
+
+	private final List<JsonPointer> fields;
+	private final JsonPointer key;
+	private final long heartbeat;
+	private final Map<String, Delivery> deliveries;
+
+	private ChangeFilter(List<JsonPointer> fields, JsonPointer key, long heartbeat, final int cacheSize) {
+		this.fields = fields;
+		this.key = key;
+		this.heartbeat = heartbeat;
+		this.deliveries = new LinkedHashMap<String, Delivery>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<String, Delivery> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Create a change filter from the specified properties
+	 *
+	 * @param properties
+	 *            the properties
+	 * @return the filter or null if change-only delivery is not enabled
+	 * @throws ValidationException
+	 *             if the properties are invalid
+	 */
+	static ChangeFilter create(Map<String, String> properties) throws ValidationException {
+		boolean enabled = false;
+		List<JsonPointer> fields = null;
+		JsonPointer key = null;
+		long heartbeat = 0;
+		int cacheSize = DEFAULT_CACHE_SIZE;
+		if (properties != null) {
+			for (Entry<String, String> entry : properties.entrySet()) {
+				String name = entry.getKey();
+				if (name != null && name.startsWith(CommonMessenger.CHANGE_ONLY_PROPERTY)) {
+					switch (name) {
+					case CommonMessenger.CHANGE_ONLY_PROPERTY:
+						enabled = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
+					case CommonMessenger.CHANGE_ONLY_FIELDS_PROPERTY:
+						if (entry.getValue() != null && entry.getValue().trim().length() > 0) {
+							fields = new ArrayList<>();
+							for (String field : entry.getValue().split(","))
+								fields.add(compile(field));
+						}
+						break;
+					case CommonMessenger.CHANGE_ONLY_KEY_PROPERTY:
+						if (entry.getValue() != null && entry.getValue().trim().length() > 0)
+							key = compile(entry.getValue());
+						break;
+					case CommonMessenger.CHANGE_ONLY_HEARTBEAT_PROPERTY:
+						try {
+							heartbeat = Long.parseLong(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Unable to parse value '" + entry.getValue() + "' for change-only heartbeat");
+						}
+						if (heartbeat < 0)
+							throw new ValidationException("Value '" + entry.getValue() + "' for change-only heartbeat must not be negative");
+						break;
+					case CommonMessenger.CHANGE_ONLY_CACHE_SIZE_PROPERTY:
+						try {
+							cacheSize = Integer.parseInt(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Unable to parse value '" + entry.getValue() + "' for change-only cache size");
+						}
+						if (cacheSize < 1)
+							throw new ValidationException("Value '" + entry.getValue() + "' for change-only cache size must be greater than zero");
+						break;
+					default:
+						throw new ValidationException("Unknown property key '" + name + "'");
+					}
+				}
+			}
+		}
+		return enabled ? new ChangeFilter(fields, key, heartbeat, cacheSize) : null;
+	}
+
+	private static JsonPointer compile(String field) throws ValidationException {
+		field = field.trim();
+		try {
+			return JsonPointer.compile(field.startsWith("/") ? field : "/" + field);
+		} catch (IllegalArgumentException e) {
+			throw new ValidationException("Invalid change-only field '" + field + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Create the fingerprint of a message
+	 *
+	 * @param message
+	 *            the message
+	 * @param path
+	 *            the path the message is sent to, might be null
+	 * @return the fingerprint
+	 * @throws ValidationException
+	 *             if the message can't be represented as JSON or fields or key
+	 *             are set for a raw payload
+	 */
+	Fingerprint fingerprint(Object message, String path) throws ValidationException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		String stream = path != null ? path : "";
+		RawPayload payload = RawPayload.of(message);
+		if (payload != null) {
+			if (key != null || fields != null)
+				throw new ValidationException("Change-only fields and key are not supported for raw payloads");
+			// pre-serialized data is compared as a whole
+			ByteBuffer data = payload.getData();
+			digest.update(data);
+		} else {
+			try {
+				JsonNode node = mapper.valueToTree(message);
+				if (key != null)
+					stream += '\n' + node.at(key).toString();
+				if (fields != null) {
+					ObjectNode selection = mapper.createObjectNode();
+					for (JsonPointer field : fields)
+						selection.set(field.toString(), node.at(field));
+					node = selection;
+				}
+				digest.update(mapper.writeValueAsBytes(node));
+			} catch (Exception e) {
+				throw new ValidationException("Failed to create fingerprint of message: " + e.getMessage(), e);
+			}
+		}
+		return new Fingerprint(stream, digest.digest());
+	}
+
+	/**
+	 * @param fingerprint
+	 *            the fingerprint of the message
+	 * @return true if the same message was delivered before and the heartbeat
+	 *         interval did not elapse yet, false otherwise
+	 */
+	synchronized boolean isUnchanged(Fingerprint fingerprint) {
+		Delivery last = deliveries.get(fingerprint.key);
+		if (last == null || !Arrays.equals(last.hash, fingerprint.hash))
+			return false;
+		return heartbeat == 0 || System.currentTimeMillis() - last.time < heartbeat;
+	}
+
+	/**
+	 * Check the message and remember it as pending until it was delivered or
+	 * failed, so identical messages sent meanwhile are suppressed
+	 *
+	 * @param fingerprint
+	 *            the fingerprint of the message
+	 * @return true if the message has to be sent, false if it is unchanged
+	 */
+	synchronized boolean dispatch(Fingerprint fingerprint) {
+		if (isUnchanged(fingerprint))
+			return false;
+		fingerprint.dispatched = new Delivery(fingerprint.hash, System.currentTimeMillis(), deliveries.get(fingerprint.key));
+		deliveries.put(fingerprint.key, fingerprint.dispatched);
+		return true;
+	}
+
+	/**
+	 * Remember the delivery of a message
+	 *
+	 * @param fingerprint
+	 *            the fingerprint of the delivered message
+	 */
+	synchronized void delivered(Fingerprint fingerprint) {
+		if (fingerprint.dispatched != null)
+			fingerprint.dispatched.previous = null;
+		else
+			deliveries.put(fingerprint.key, new Delivery(fingerprint.hash, System.currentTimeMillis(), null));
+	}
+
+	/**
+	 * Forget a dispatched message which was not delivered, the last delivery
+	 * applies again
+	 *
+	 * @param fingerprint
+	 *            the fingerprint of the failed message
+	 */
+	synchronized void failed(Fingerprint fingerprint) {
+		Delivery dispatched = fingerprint.dispatched;
+		if (dispatched == null)
+			return;
+		Delivery current = deliveries.get(fingerprint.key);
+		if (current == dispatched) {
+			if (dispatched.previous != null)
+				deliveries.put(fingerprint.key, dispatched.previous);
+			else
+				deliveries.remove(fingerprint.key);
+		} else {
+			// a later message is pending, skip the failed one when it fails too
+			for (Delivery d = current; d != null; d = d.previous) {
+				if (d.previous == dispatched) {
+					d.previous = dispatched.previous;
+					break;
+				}
+			}
+		}
+	}
+}
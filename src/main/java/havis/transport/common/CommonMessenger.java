@@ -16,16 +16,23 @@ import havis.util.monitor.TransportQueueError;
 import havis.util.monitor.TransportSource;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,9 +48,42 @@ public class CommonMessenger<T> implements Messenger<T> {
 
 	private final static Logger log = Logger.getLogger(Messenger.class.getName());
 
+	/**
+	 * Enable change-only delivery
+	 */
+	public final static String CHANGE_ONLY_PROPERTY = Transporter.PREFIX + "ChangeOnly";
+	/**
+	 * Comma separated list of JSON pointers or field names to compare, all
+	 * fields are compared if not set. Not supported for raw payloads.
+	 */
+	public final static String CHANGE_ONLY_FIELDS_PROPERTY = Transporter.PREFIX + "ChangeOnly.Fields";
+	/**
+	 * JSON pointer or field name identifying the logical stream of a message.
+	 * Not supported for raw payloads.
+	 */
+	public final static String CHANGE_ONLY_KEY_PROPERTY = Transporter.PREFIX + "ChangeOnly.Key";
+	/**
+	 * Interval in milliseconds after which an unchanged message is sent
+	 * anyway, zero to never resend unchanged messages
+	 */
+	public final static String CHANGE_ONLY_HEARTBEAT_PROPERTY = Transporter.PREFIX + "ChangeOnly.Heartbeat";
+	/**
+	 * Maximum number of logical streams to remember
+	 */
+	public final static String CHANGE_ONLY_CACHE_SIZE_PROPERTY = Transporter.PREFIX + "ChangeOnly.CacheSize";
+	/**
+	 * Maximum time in milliseconds to wait before repeating a failed
+	 * delivery when the server requests a longer delay, defaults to five
+	 * minutes
+	 */
+	public final static String RESEND_MAX_DELAY_PROPERTY = Transporter.PREFIX + "Resend.MaxDelay";
+
+	private final static int DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+
 	private URI uri;
 	private Transporter<T> transporter;
 	private Transformer transformer;
+	private ChangeFilter changeFilter;
 
 	private boolean errorLogging = true;
 
@@ -51,9 +91,10 @@ public class CommonMessenger<T> implements Messenger<T> {
 	private AtomicBoolean disposed = new AtomicBoolean(false);
 
 	private int repeatPeriod = -1;
+	private int maxDelay = DEFAULT_MAX_DELAY;
 	private int queueSize = -1;
 	private boolean exceeded;
-	private boolean failed;
+	private volatile boolean failed;
 	private long lastSuccess = -1;
 	private long lastError = -1;
 	private AtomicBoolean connectionErrorLogged = new AtomicBoolean(false);
@@ -103,7 +144,8 @@ public class CommonMessenger<T> implements Messenger<T> {
 		}
 	};
 
-	private ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+	// failed sends are repeated ahead of the queued messages
+	private ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingDeque<Runnable>()) {
 		@SuppressWarnings("unchecked")
 		@Override
 		protected <V> RunnableFuture<V> newTaskFor(Runnable runnable, V value) {
@@ -117,6 +159,61 @@ public class CommonMessenger<T> implements Messenger<T> {
 		}
 	};
 
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final PriorityQueue<AsyncSend> retries = new PriorityQueue<>(11, new Comparator<AsyncSend>() {
+		@Override
+		public int compare(AsyncSend a, AsyncSend b) {
+			return Long.compare(a.sequence, b.sequence);
+		}
+	});
+	private boolean retrying;
+
+	/**
+	 * Repeats failed sends in the order they were sent, queued messages wait
+	 * until no failed send is left. The failed sends are repeated together,
+	 * so a transporter collecting messages sends them in as few requests as
+	 * possible.
+	 */
+	private final Runnable retrier = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long delay;
+					synchronized (retries) {
+						AsyncSend first = retries.peek();
+						if (first == null) {
+							retrying = false;
+							return;
+						}
+						delay = first.retry - System.currentTimeMillis();
+					}
+					// messages failing meanwhile are repeated with the others
+					if (delay > 0)
+						Thread.sleep(delay);
+					List<AsyncSend> sends = new ArrayList<>();
+					synchronized (retries) {
+						AsyncSend send;
+						while ((send = retries.poll()) != null)
+							sends.add(send);
+					}
+					for (AsyncSend send : sends)
+						send.run();
+					sends.get(0).transporter.flush();
+					// wait for the outcomes, sends failing again stay ahead
+					synchronized (retries) {
+						for (AsyncSend send : sends)
+							while (!send.task.isDone() && !retries.contains(send))
+								retries.wait();
+					}
+				}
+			} catch (InterruptedException e) {
+				// disposed
+			}
+		}
+	};
+
 	/**
 	 * @return whether errors will be logged
 	 */
@@ -151,6 +248,7 @@ public class CommonMessenger<T> implements Messenger<T> {
 	}
 
 	private Map<String, String> init(Map<String, String> properties) throws ValidationException {
+		changeFilter = ChangeFilter.create(properties);
 		if (properties != null) {
 			for (Entry<String, String> entry : properties.entrySet()) {
 				if (entry.getKey() != null) {
@@ -185,6 +283,15 @@ public class CommonMessenger<T> implements Messenger<T> {
 						if (queueSize < 1)
 							throw new ValidationException("Value '" + entry.getValue() + "' for resend queue size must be greater than zero");
 						break;
+					case RESEND_MAX_DELAY_PROPERTY:
+						try {
+							maxDelay = Integer.parseInt(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Unable to parse value '" + entry.getValue() + "' for resend max delay");
+						}
+						if (maxDelay < 1000)
+							throw new ValidationException("Value '" + entry.getValue() + "' for resend max delay must be greater or equal than 1000 ms");
+						break;
 					}
 				}
 			}
@@ -259,7 +366,7 @@ public class CommonMessenger<T> implements Messenger<T> {
 		if (errorState.wasError()) {
 			String additionalMessage = "";
 			if (repeatPeriod > 0) {
-				int remainingMessagesInQueue = executor.getQueue().size();
+				int remainingMessagesInQueue = getQueueSize();
 				if (remainingMessagesInQueue > 0)
 					additionalMessage = " (queue size: " + remainingMessagesInQueue + ")";
 				else
@@ -288,12 +395,12 @@ public class CommonMessenger<T> implements Messenger<T> {
 	}
 
 	private void onTransportQueueIncreased() {
-		log.log(Level.FINE, "Transport {0} queue size is currently " + executor.getQueue().size(), getDisplayName());
+		log.log(Level.FINE, "Transport {0} queue size is currently " + getQueueSize(), getDisplayName());
 		queueFilledState.setError();
 	}
 
 	private void onTransportQueueDecreased() {
-		int remainingMessagesInQueue = executor.getQueue().size();
+		int remainingMessagesInQueue = getQueueSize();
 		log.log(Level.FINE, "Transport {0} queue size is currently " + remainingMessagesInQueue, getDisplayName());
 		if (remainingMessagesInQueue == 0 && queueFilledState.wasError()) {
 			Connector.getFactory().getBroker().notify(source, new TransportQueueError(new Date(), false, "Transport queue is now empty"));
@@ -334,8 +441,18 @@ public class CommonMessenger<T> implements Messenger<T> {
 		}
 	}
 
+	/**
+	 * @return the number of pending messages, including messages in flight
+	 *         or collected by an asynchronous transporter
+	 */
+	private int getQueueSize() {
+		if (transporter instanceof AsyncTransporter && ((AsyncTransporter) transporter).isAsync())
+			return pending.get();
+		return executor.getQueue().size();
+	}
+
 	protected FutureSendTask send(final T message, final String name, final String path, final Map<String, String> properties) {
-		if (queueSize > 0 && executor.getQueue().size() == queueSize) {
+		if (queueSize > 0 && getQueueSize() >= queueSize) {
 			if (!exceeded) {
 				exceeded = true;
 				onTransportQueueError("Exceeded maximum number of pending messages, messages will be discarded.");
@@ -354,23 +471,21 @@ public class CommonMessenger<T> implements Messenger<T> {
 			exceeded = false;
 			onTransportQueueSuccess();
 		}
+		if (transporter instanceof AsyncTransporter && ((AsyncTransporter) transporter).isAsync()) {
+			AsyncSend send = new AsyncSend((AsyncTransporter) transporter, message, name, path, properties);
+			executor.execute(send);
+			return send.task;
+		}
 		return (FutureSendTask) executor.submit(new Callable<Void>() {
 			@Override
 			public Void call() throws Exception {
-				if (message == null)
-					throw new TransportException("message must not be null");
-
-				Object msg = message;
-				if (transformer != null) {
-					try {
-						msg = transformer.transform(message);
-					} catch (TransformException e) {
-						throw new TransportException("Transformation for \"" + getDisplayName() + "\" failed: " + e.getMessage());
-					}
-					if (msg == null)
-						throw new TransportException("Transformation for \"" + getDisplayName() + "\" failed: message is null after transformation");
+				Object msg = transform(message);
+				ChangeFilter.Fingerprint fingerprint = fingerprint(msg, path);
+				if (fingerprint != null && changeFilter.isUnchanged(fingerprint)) {
+					log.log(Level.FINE, "Transport {0} skipped unchanged message", getDisplayName());
+					return null;
 				}
-				
+
 				while (true) {
 					try {
 						if (path != null)
@@ -378,6 +493,8 @@ public class CommonMessenger<T> implements Messenger<T> {
 						else
 							transporter.send(msg);
 						onTransportConnectionError(false);
+						if (fingerprint != null)
+							changeFilter.delivered(fingerprint);
 					} catch (TransportConnectionException e) {
 						if (repeatPeriod > 0) {
 							onTransportQueueIncreased();
@@ -386,7 +503,7 @@ public class CommonMessenger<T> implements Messenger<T> {
 								onTransportError(e);
 							}
 							onTransportConnectionError(true);
-							Thread.sleep(repeatPeriod);
+							Thread.sleep(getRetryDelay(e));
 							continue;
 						} else {
 							onTransportConnectionError(true);
@@ -407,6 +524,166 @@ public class CommonMessenger<T> implements Messenger<T> {
 		});
 	}
 
+	/**
+	 * @return the time to wait before repeating a failed delivery, servers
+	 *         throttling the client might extend the repeat period up to the
+	 *         maximum delay
+	 */
+	private long getRetryDelay(TransportException e) {
+		if (e instanceof ThrottledException && ((ThrottledException) e).getRetryAfter() > repeatPeriod)
+			return Math.min(((ThrottledException) e).getRetryAfter(), Math.max(maxDelay, repeatPeriod));
+		return repeatPeriod;
+	}
+
+	private Object transform(T message) throws TransportException {
+		if (message == null)
+			throw new TransportException("message must not be null");
+
+		Object msg = message;
+		// pre-serialized messages are sent as is
+		if (transformer != null && !RawPayload.isRaw(message)) {
+			try {
+				msg = transformer.transform(message);
+			} catch (TransformException e) {
+				throw new TransportException("Transformation for \"" + getDisplayName() + "\" failed: " + e.getMessage());
+			}
+			if (msg == null)
+				throw new TransportException("Transformation for \"" + getDisplayName() + "\" failed: message is null after transformation");
+		}
+		return msg;
+	}
+
+	private ChangeFilter.Fingerprint fingerprint(Object msg, String path) throws TransportException {
+		if (changeFilter != null) {
+			try {
+				return changeFilter.fingerprint(msg, path);
+			} catch (ValidationException e) {
+				throw new TransportException("Change detection for \"" + getDisplayName() + "\" failed: " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Send of a message to an asynchronous transporter. The task completes
+	 * when the transporter reports the outcome, failed connections are
+	 * repeated on the executor ahead of the queued messages.
+	 */
+	private class AsyncSend implements Runnable, SendCallback {
+
+		private final AsyncTransporter transporter;
+		private final T message;
+		private final String name;
+		private final String path;
+		private final Map<String, String> properties;
+		private final FutureSendTask task;
+		private final long sequence = CommonMessenger.this.sequence.incrementAndGet();
+
+		private volatile Exception error;
+		private Object msg;
+		private ChangeFilter.Fingerprint fingerprint;
+		private long retry = -1;
+
+		AsyncSend(AsyncTransporter transporter, T message, String name, String path, Map<String, String> properties) {
+			this.transporter = transporter;
+			this.message = message;
+			this.name = name;
+			this.path = path;
+			this.properties = properties;
+			this.task = new FutureSendTask(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					// runs when the outcome is known
+					if (error != null)
+						throw error;
+					return null;
+				}
+			}, completionHandler);
+			pending.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			if (task.isDone())
+				return;
+			try {
+				if (retry > -1) {
+					// messages failed together are repeated together
+					long delay = retry - System.currentTimeMillis();
+					if (delay > 0)
+						Thread.sleep(delay);
+				} else {
+					msg = transform(message);
+					fingerprint = fingerprint(msg, path);
+					// identical messages sent meanwhile are skipped as well
+					if (fingerprint != null && !changeFilter.dispatch(fingerprint)) {
+						log.log(Level.FINE, "Transport {0} skipped unchanged message", getDisplayName());
+						complete(null);
+						return;
+					}
+				}
+				transporter.send(msg, name, path, properties, this);
+			} catch (InterruptedException e) {
+				complete(e);
+			} catch (TransportException e) {
+				complete(e);
+			}
+		}
+
+		@Override
+		public void completed() {
+			onTransportConnectionError(false);
+			if (fingerprint != null)
+				changeFilter.delivered(fingerprint);
+			complete(null);
+			if (failed) {
+				failed = false;
+				onTransportSuccess();
+			}
+			if (repeatPeriod > 0) {
+				onTransportQueueDecreased();
+			}
+		}
+
+		@Override
+		public void failed(TransportException e) {
+			if (e instanceof TransportConnectionException) {
+				onTransportConnectionError(true);
+				if (repeatPeriod > 0 && !disposed.get() && !task.isDone()) {
+					onTransportQueueIncreased();
+					if (!failed) {
+						failed = true;
+						onTransportError(e);
+					}
+					retry = System.currentTimeMillis() + getRetryDelay(e);
+					synchronized (retries) {
+						retries.add(this);
+						retries.notifyAll();
+						if (!retrying) {
+							retrying = true;
+							((BlockingDeque<Runnable>) executor.getQueue()).offerFirst(retrier);
+						}
+					}
+					return;
+				}
+			}
+			complete(e);
+		}
+
+		private void complete(Exception e) {
+			if (task.isDone())
+				return;
+			if (e != null && fingerprint != null)
+				changeFilter.failed(fingerprint);
+			pending.decrementAndGet();
+			error = e;
+			task.run();
+			synchronized (retries) {
+				retries.notifyAll();
+			}
+		}
+	}
+
 	@Override
 	public FutureSendTask send(final T message) {
 		return send(message, null, null, null);
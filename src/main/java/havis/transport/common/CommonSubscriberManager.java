@@ -366,6 +366,42 @@ public class CommonSubscriberManager extends TaskHandler implements SubscriberMa
 		}
 	}
 
+	/**
+	 * Update the certificates of a subscriber, the messenger is kept and only
+	 * its socket factory is replaced
+	 * 
+	 * @param id
+	 *            the ID of the subscriber
+	 * @throws ValidationException
+	 *             if the certificates could not be loaded
+	 */
+	@SuppressWarnings("rawtypes")
+	public void updateCertificates(String id) throws ValidationException {
+		Objects.requireNonNull(id, "ID must not be null");
+		CommonMessenger messenger = null;
+		this.lock.lock();
+		try {
+			for (Entry<Subscription, CommonMessenger> entry : this.messengers.entrySet()) {
+				if (id.equals(entry.getKey().getId())) {
+					messenger = entry.getValue();
+					break;
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		if (messenger != null && messenger.supportsSocketFactory()) {
+			// don't wait for the watcher to notice the change
+			SSLContextManager.invalidate(id);
+			try {
+				messenger.setSocketFactory(SSLContextManager.createSSLSocketFactory(id, "TLSv1.2"));
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Failed to update certificates: " + e.toString(), e);
+				throw new ValidationException("Failed to update certificates: " + e.toString());
+			}
+		}
+	}
+
 	/**
 	 * Remove a subscriber by ID
 	 * 
@@ -24,5 +24,31 @@ public class Environment {
 	//TODO MICA depended KeyStore Password
 	public static final String KEYSTORE_PASSWD = properties.getProperty("havis.transport.keyStorePasswd", "passwd");
 
+	public static final int HTTP_RECEIVER_PORT = getInt("havis.transport.http.receiver.port", 8091, 0, 0xFFFF);
+	// binds to the loopback address if not set, "0.0.0.0" binds to all
+	// interfaces, subscribers should then set user info in their URI to
+	// require basic authorization
+	public static final String HTTP_RECEIVER_ADDRESS = properties.getProperty("havis.transport.http.receiver.address");
+	public static final int HTTP_RECEIVER_THREADS = getInt("havis.transport.http.receiver.threads", 4, 1, Integer.MAX_VALUE);
+	public static final int HTTP_RECEIVER_QUEUE_SIZE = getInt("havis.transport.http.receiver.queueSize", 256, 1, Integer.MAX_VALUE);
+	public static final int HTTP_RECEIVER_MAX_BODY_SIZE = getInt("havis.transport.http.receiver.maxBodySize", 1024 * 1024, 0, Integer.MAX_VALUE);
+
+	public static final String MQTT_PERSISTENCE_FOLDER = properties.getProperty("havis.transport.mqtt.persistenceFolder", "conf/havis/transport/mqtt");
+
 	public static final String SUBSCRIBER_CONFIG = properties.getProperty("havis.transport.config.subscriber", "conf/havis/transport/subscribers.json");
+
+	private static int getInt(String key, int defaultValue, int min, int max) {
+		String value = properties.getProperty(key);
+		if (value != null) {
+			try {
+				int result = Integer.parseInt(value.trim());
+				if (result >= min && result <= max)
+					return result;
+			} catch (NumberFormatException e) {
+				// falls back to the default
+			}
+			log.log(Level.WARNING, "Invalid value '" + value + "' of environment property '" + key + "', using default " + defaultValue);
+		}
+		return defaultValue;
+	}
 }
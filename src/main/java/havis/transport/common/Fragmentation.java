@@ -0,0 +1,211 @@
+package havis.transport.common;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits messages into fragments which fit into one datagram and reassembles
+ * them. Each fragment starts with a header of the magic number 0x4856, the
+ * message ID as 32 bit integer and the index and count of the fragment as 16
+ * bit unsigned integers, all big endian.
+ */
+class Fragmentation {
+
+	private final static Logger log = Logger.getLogger(Fragmentation.class.getName());
+
+	final static int HEADER_SIZE = 10;
+	final static int MAX_FRAGMENTS = 0xFFFF;
+
+	private final static short MAGIC = 0x4856;
+	// bytes charged for each fragment slot of an incomplete message
+	private final static int SLOT_SIZE = 8;
+
+	/**
+	 * Write the header of a fragment
+	 *
+	 * @param target
+	 *            the buffer to write to
+	 * @param id
+	 *            the message ID
+	 * @param index
+	 *            the index of the fragment
+	 * @param count
+	 *            the number of fragments of the message
+	 */
+	static void header(ByteBuffer target, int id, int index, int count) {
+		target.putShort(MAGIC).putInt(id).putShort((short) index).putShort((short) count);
+	}
+
+	/**
+	 * Key of a message being reassembled
+	 */
+	private static class Key {
+		private final SocketAddress source;
+		private final int id;
+
+		private Key(SocketAddress source, int id) {
+			this.source = source;
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Objects.hashCode(source) + id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return id == other.id && Objects.equals(source, other.source);
+		}
+	}
+
+	/**
+	 * Message being reassembled
+	 */
+	private static class Message {
+		private final long created = System.currentTimeMillis();
+		private final byte[][] fragments;
+		private int received;
+		private int size;
+
+		private Message(int count) {
+			fragments = new byte[count][];
+		}
+
+		/**
+		 * @return the bytes held by the message including its fragment slots
+		 */
+		private long cost() {
+			return (long) fragments.length * SLOT_SIZE + size;
+		}
+	}
+
+	/**
+	 * Reassembles the fragments received on one channel. The number and bytes
+	 * of incomplete messages are bounded, the slots of the announced fragments
+	 * count towards the bytes. The oldest incomplete messages are dropped if a
+	 * bound is exceeded or the timeout elapsed.
+	 */
+	static class Reassembly {
+
+		private final int maxBytes;
+		private final int maxMessages;
+		private final long timeout;
+		private final Map<Key, Message> messages = new LinkedHashMap<>();
+		private long bytes;
+
+		/**
+		 * Creates a new reassembly
+		 *
+		 * @param maxBytes
+		 *            the maximum number of bytes of incomplete messages
+		 * @param maxMessages
+		 *            the maximum number of incomplete messages
+		 * @param timeout
+		 *            the time in milliseconds to wait for missing fragments
+		 */
+		Reassembly(int maxBytes, int maxMessages, long timeout) {
+			this.maxBytes = maxBytes;
+			this.maxMessages = maxMessages;
+			this.timeout = timeout;
+		}
+
+		/**
+		 * Add a received fragment
+		 *
+		 * @param source
+		 *            the sender of the fragment
+		 * @param datagram
+		 *            the datagram containing the fragment
+		 * @return the message if complete, null otherwise
+		 */
+		byte[] add(SocketAddress source, ByteBuffer datagram) {
+			expire();
+			if (datagram.remaining() < HEADER_SIZE || datagram.getShort() != MAGIC) {
+				log.log(Level.FINE, "Dropped datagram without fragment header from {0}", source);
+				return null;
+			}
+			int id = datagram.getInt();
+			int index = datagram.getShort() & 0xFFFF;
+			int count = datagram.getShort() & 0xFFFF;
+			if (count == 0 || index >= count) {
+				log.log(Level.FINE, "Dropped invalid fragment from {0}", source);
+				return null;
+			}
+			byte[] data = new byte[datagram.remaining()];
+			datagram.get(data);
+			if (count == 1)
+				return data;
+
+			Key key = new Key(source, id);
+			Message message = messages.get(key);
+			if (message == null) {
+				if ((long) count * SLOT_SIZE + data.length > maxBytes) {
+					log.log(Level.FINE, "Dropped fragment of message exceeding the reassembly buffer from {0}", source);
+					return null;
+				}
+				message = new Message(count);
+				messages.put(key, message);
+				bytes += (long) count * SLOT_SIZE;
+			} else if (message.fragments.length != count) {
+				log.log(Level.FINE, "Dropped fragment with inconsistent count from {0}", source);
+				return null;
+			}
+			if (message.fragments[index] != null)
+				// duplicate
+				return null;
+			message.fragments[index] = data;
+			message.received++;
+			message.size += data.length;
+			bytes += data.length;
+
+			if (message.received == count) {
+				remove(key, message);
+				byte[] result = new byte[message.size];
+				int offset = 0;
+				for (byte[] fragment : message.fragments) {
+					System.arraycopy(fragment, 0, result, offset, fragment.length);
+					offset += fragment.length;
+				}
+				return result;
+			}
+
+			// drop the oldest incomplete messages to stay within bounds
+			for (Iterator<Map.Entry<Key, Message>> it = messages.entrySet().iterator(); (bytes > maxBytes || messages.size() > maxMessages)
+					&& it.hasNext();) {
+				Map.Entry<Key, Message> entry = it.next();
+				it.remove();
+				bytes -= entry.getValue().cost();
+				log.log(Level.FINE, "Dropped incomplete message from {0}, reassembly buffer is full", entry.getKey().source);
+			}
+			return null;
+		}
+
+		private void expire() {
+			long now = System.currentTimeMillis();
+			for (Iterator<Map.Entry<Key, Message>> it = messages.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Key, Message> entry = it.next();
+				if (now - entry.getValue().created < timeout)
+					// ordered by creation
+					break;
+				it.remove();
+				bytes -= entry.getValue().cost();
+				log.log(Level.FINE, "Dropped incomplete message from {0}, fragments are missing", entry.getKey().source);
+			}
+		}
+
+		private void remove(Key key, Message message) {
+			messages.remove(key);
+			bytes -= message.cost();
+		}
+	}
+}
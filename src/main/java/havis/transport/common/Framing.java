@@ -0,0 +1,245 @@
+package havis.transport.common;
+
+import havis.transport.ValidationException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Marks message boundaries on a stream connection. Messages are either
+ * delimited by closing the connection, prefixed by their length as 32 bit big
+ * endian integer or followed by a delimiter.
+ */
+class Framing {
+
+	enum Type {
+		CLOSE, LENGTH, DELIMITER
+	}
+
+	final static Framing CLOSE = new Framing(Type.CLOSE, null);
+
+	private final static String DEFAULT_DELIMITER = "\n";
+
+	private final Type type;
+	private final byte[] delimiter;
+
+	private Framing(Type type, byte[] delimiter) {
+		this.type = type;
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * Parse the framing
+	 *
+	 * @param type
+	 *            the type, either "close", "length" or "delimiter"
+	 * @param delimiter
+	 *            the delimiter, supports the escape sequences \n, \r, \t, \0
+	 *            and \\, defaults to \n
+	 * @return the framing
+	 * @throws ValidationException
+	 *             if type or delimiter are invalid
+	 */
+	static Framing parse(String type, String delimiter) throws ValidationException {
+		if (type == null)
+			throw new ValidationException("Framing not specified");
+		switch (type.trim().toLowerCase()) {
+		case "close":
+			return CLOSE;
+		case "length":
+			return new Framing(Type.LENGTH, null);
+		case "delimiter":
+			return new Framing(Type.DELIMITER, unescape(delimiter != null ? delimiter : DEFAULT_DELIMITER));
+		default:
+			throw new ValidationException("Invalid framing value '" + type + "'");
+		}
+	}
+
+	private static byte[] unescape(String value) throws ValidationException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				switch (value.charAt(++i)) {
+				case 'n':
+					c = '\n';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				case 't':
+					c = '\t';
+					break;
+				case '0':
+					c = '\0';
+					break;
+				case '\\':
+					c = '\\';
+					break;
+				default:
+					throw new ValidationException("Invalid escape sequence in delimiter '" + value + "'");
+				}
+			}
+			if (c > 0xFF)
+				throw new ValidationException("Delimiter '" + value + "' must only contain single byte characters");
+			result.write(c);
+		}
+		if (result.size() == 0)
+			throw new ValidationException("Delimiter must not be empty");
+		return result.toByteArray();
+	}
+
+	Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return true if the connection is kept open between messages
+	 */
+	boolean isPersistent() {
+		return type != Type.CLOSE;
+	}
+
+	/**
+	 * Frame the payload
+	 *
+	 * @param payload
+	 *            the payload
+	 * @return the buffers to write in order
+	 */
+	ByteBuffer[] frame(ByteBuffer payload) {
+		switch (type) {
+		case LENGTH:
+			ByteBuffer header = ByteBuffer.allocate(4);
+			header.putInt(0, payload.remaining());
+			return new ByteBuffer[] { header, payload };
+		case DELIMITER:
+			return new ByteBuffer[] { payload, ByteBuffer.wrap(delimiter) };
+		default:
+			return new ByteBuffer[] { payload };
+		}
+	}
+
+	/**
+	 * Create a decoder for the frames received on one connection
+	 *
+	 * @param maxFrameSize
+	 *            the maximum size of a frame in bytes
+	 * @return the decoder
+	 */
+	Decoder decoder(int maxFrameSize) {
+		return new Decoder(maxFrameSize);
+	}
+
+	/**
+	 * Splits the received bytes into frames
+	 */
+	class Decoder {
+
+		private final int maxFrameSize;
+		private byte[] data = new byte[4096];
+		private int start;
+		private int size;
+		// position to continue searching for the delimiter
+		private int searched;
+
+		private Decoder(int maxFrameSize) {
+			this.maxFrameSize = maxFrameSize;
+		}
+
+		/**
+		 * Append received bytes
+		 *
+		 * @param buffer
+		 *            the received bytes
+		 * @throws IOException
+		 *             if the frame exceeds the maximum size
+		 */
+		void append(ByteBuffer buffer) throws IOException {
+			int length = buffer.remaining();
+			// complete frames are taken before appending again, the limit of
+			// other framings is checked when the frame is taken
+			if (type == Type.CLOSE && size + length > maxFrameSize)
+				throw new IOException("Frame exceeds maximum size of " + maxFrameSize + " bytes");
+			if (start + size + length > data.length) {
+				// compact and grow
+				byte[] target = size + length > data.length ? new byte[Math.max(data.length * 2, size + length)] : data;
+				System.arraycopy(data, start, target, 0, size);
+				searched -= start;
+				data = target;
+				start = 0;
+			}
+			buffer.get(data, start + size, length);
+			size += length;
+		}
+
+		/**
+		 * @return the next complete frame or null if none is complete
+		 * @throws IOException
+		 *             if the frame exceeds the maximum size
+		 */
+		byte[] next() throws IOException {
+			switch (type) {
+			case LENGTH:
+				if (size < 4)
+					return null;
+				int length = ((data[start] & 0xFF) << 24) | ((data[start + 1] & 0xFF) << 16) | ((data[start + 2] & 0xFF) << 8) | (data[start + 3] & 0xFF);
+				if (length < 0 || length > maxFrameSize)
+					throw new IOException("Frame exceeds maximum size of " + maxFrameSize + " bytes");
+				if (size < 4 + length)
+					return null;
+				byte[] frame = Arrays.copyOfRange(data, start + 4, start + 4 + length);
+				consume(4 + length);
+				return frame;
+			case DELIMITER:
+				int end = start + size - delimiter.length;
+				for (int i = Math.max(start, searched); i <= end; i++) {
+					if (matches(i)) {
+						if (i - start > maxFrameSize)
+							throw new IOException("Frame exceeds maximum size of " + maxFrameSize + " bytes");
+						frame = Arrays.copyOfRange(data, start, i);
+						consume(i - start + delimiter.length);
+						return frame;
+					}
+				}
+				searched = Math.max(start, end + 1);
+				if (size - delimiter.length > maxFrameSize)
+					throw new IOException("Frame exceeds maximum size of " + maxFrameSize + " bytes");
+				return null;
+			default:
+				// complete when the connection is closed
+				return null;
+			}
+		}
+
+		private boolean matches(int offset) {
+			for (int i = 0; i < delimiter.length; i++)
+				if (data[offset + i] != delimiter[i])
+					return false;
+			return true;
+		}
+
+		private void consume(int length) {
+			start += length;
+			size -= length;
+			if (size == 0)
+				start = 0;
+			searched = start;
+		}
+
+		/**
+		 * Called when the connection was closed by the peer
+		 *
+		 * @return the last frame if framed by close or null
+		 */
+		byte[] finish() {
+			if (type != Type.CLOSE || size == 0)
+				return null;
+			byte[] frame = Arrays.copyOfRange(data, start, start + size);
+			consume(size);
+			return frame;
+		}
+	}
+}
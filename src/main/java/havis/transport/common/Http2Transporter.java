@@ -0,0 +1,233 @@
+package havis.transport.common;
+
+import havis.transport.Marshaller;
+import havis.transport.Messenger;
+import havis.transport.TransportConnectionException;
+import havis.transport.TransportException;
+import havis.transport.Transporter;
+import havis.transport.ValidationException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Transporter using HTTP/2, concurrent requests to the same host are
+ * multiplexed over one connection. The scheme "h2c" uses cleartext HTTP/2 or
+ * falls back to HTTP/1.1 if the server doesn't upgrade, "h2" uses HTTP/2 over
+ * TLS negotiated by ALPN. Requires Java 11.
+ */
+class Http2Transporter<T> extends StreamTransporter<T> implements AsyncTransporter {
+
+	/**
+	 * Maximum number of requests in flight per transporter
+	 */
+	final static String MAX_IN_FLIGHT_PROPERTY = Transporter.PREFIX + "HTTP2.MaxInFlight";
+
+	private final static int DEFAULT_MAX_IN_FLIGHT = 100;
+
+	// clients are shared to share the connections to each host
+	private static HttpClient client;
+	private static HttpClient trustAllClient;
+
+	private URI uri;
+	private final HttpOptions options = new HttpOptions();
+	private Semaphore inFlight;
+	private Pacer pacer = new Pacer();
+
+	private HttpClient current;
+
+	@Override
+	protected String getDefaultMimeType() {
+		return Messenger.DEFAULT_MIMETYPE;
+	}
+
+	@Override
+	protected void init(URI uri, Map<String, String> properties) throws ValidationException {
+		if (uri == null)
+			throw new ValidationException("URI must not be null");
+		int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		if (properties != null) {
+			for (Entry<String, String> entry : properties.entrySet()) {
+				String key = entry.getKey();
+				if (options.parse(key, entry.getValue()))
+					continue;
+				if (MAX_IN_FLIGHT_PROPERTY.equals(key)) {
+					try {
+						maxInFlight = Integer.parseInt(entry.getValue());
+					} catch (NumberFormatException e) {
+						throw new ValidationException("Invalid max in flight value '" + entry.getValue() + "'", e);
+					}
+					if (maxInFlight < 1)
+						throw new ValidationException("Value '" + entry.getValue() + "' for max in flight must be greater than zero");
+				} else if (HttpTransporter.PACING_PROPERTY.equals(key)) {
+					pacer = Boolean.FALSE.toString().equalsIgnoreCase(entry.getValue()) ? null : new Pacer();
+				} else if (key != null && key.startsWith(HttpOptions.PREFIX)) {
+					throw new ValidationException("Unknown property key '" + key + "'");
+				}
+			}
+		}
+
+		options.init(uri);
+		try {
+			// map the scheme to the underlying protocol
+			this.uri = new URI("h2".equals(uri.getScheme()) ? "https" : "http", uri.getUserInfo(), uri.getHost(), uri.getPort(), uri.getPath(),
+					uri.getQuery(), uri.getFragment());
+		} catch (URISyntaxException e) {
+			throw new ValidationException("Invalid URI '" + uri + "': " + e.getMessage(), e);
+		}
+
+		inFlight = new Semaphore(maxInFlight);
+		current = getClient(options.isBypassSslVerification());
+	}
+
+	private static synchronized HttpClient getClient(boolean trustAll) throws ValidationException {
+		if (trustAll) {
+			// hostname verification can only be disabled for the whole VM
+			if (trustAllClient == null) {
+				SSLContext context = SSLContextManager.getTrustedAllContext();
+				if (context == null)
+					throw new ValidationException("Bypassing SSL verification is not available");
+				trustAllClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).sslContext(context).build();
+			}
+			return trustAllClient;
+		}
+		if (client == null)
+			client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+		return client;
+	}
+
+	@Override
+	protected void send(Marshaller<T> marshaller, T message, String name, String path, Map<String, String> properties) throws TransportException {
+		send(request(HttpOptions.extend(this.uri, path, properties), options.getMimeType(), marshaller, message));
+	}
+
+	@Override
+	protected void send(Marshaller<T> marshaller, T message) throws TransportException {
+		send(request(this.uri, options.getMimeType(), marshaller, message));
+	}
+
+	@Override
+	protected void sendRaw(RawPayload payload) throws TransportException {
+		send(request(this.uri, payload.getMimeType() != null ? payload.getMimeType() : options.getMimeType(), payload.<T> getMarshaller(), null));
+	}
+
+	@Override
+	protected void sendRaw(RawPayload payload, String name, String path, Map<String, String> properties) throws TransportException {
+		send(request(HttpOptions.extend(this.uri, path, properties), payload.getMimeType() != null ? payload.getMimeType() : options.getMimeType(), payload.<T> getMarshaller(), null));
+	}
+
+	private void send(HttpRequest request) throws TransportException {
+		try {
+			if (pacer != null)
+				pacer.await();
+			handle(current.send(request, HttpResponse.BodyHandlers.discarding()));
+		} catch (IOException e) {
+			throw new TransportConnectionException("HTTP transport failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("HTTP transport was interrupted", e);
+		}
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, final SendCallback callback) {
+		HttpRequest request;
+		try {
+			URI uri = path != null ? HttpOptions.extend(this.uri, path, properties) : this.uri;
+			RawPayload payload = RawPayload.of(message);
+			if (payload != null)
+				request = request(uri, payload.getMimeType() != null ? payload.getMimeType() : options.getMimeType(), payload.<T> getMarshaller(), null);
+			else
+				request = request(uri, options.getMimeType(), getMarshaller(), (T) message);
+			// space the requests to a throttling server and limit the requests
+			// in flight, the caller waits for both
+			if (pacer != null)
+				pacer.await();
+			inFlight.acquire();
+		} catch (TransportException e) {
+			callback.failed(e);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			callback.failed(new TransportException("HTTP transport was interrupted", e));
+			return;
+		}
+
+		current.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>() {
+			@Override
+			public void accept(HttpResponse<Void> response, Throwable error) {
+				inFlight.release();
+				if (error instanceof CompletionException || error instanceof ExecutionException)
+					error = error.getCause();
+				if (error != null) {
+					if (error instanceof IOException)
+						callback.failed(new TransportConnectionException("HTTP transport failed: " + error.getMessage(), error));
+					else
+						callback.failed(new TransportException("HTTP transport failed: " + error.getMessage(), error));
+					return;
+				}
+				try {
+					handle(response);
+				} catch (TransportException e) {
+					callback.failed(e);
+					return;
+				}
+				callback.completed();
+			}
+		});
+	}
+
+	private HttpRequest request(URI uri, String contentType, Marshaller<T> marshaller, T message) throws TransportException {
+		byte[] data;
+		// requests are sent asynchronously, so the body has to be copied
+		try (MessageBuffer buffer = MessageBuffer.get()) {
+			marshaller.marshal(message, buffer);
+			data = buffer.toByteArray();
+		}
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri).method(options.getMethod(), HttpRequest.BodyPublishers.ofByteArray(data))
+				.header("Content-Type", contentType);
+		if (options.getTimeout() > 0)
+			builder.timeout(Duration.ofMillis(options.getTimeout()));
+		String cookies = options.getCookies();
+		if (cookies != null)
+			builder.header("Cookie", cookies);
+		String authorization = options.getAuthorization();
+		if (authorization != null)
+			builder.header("Authorization", authorization);
+		return builder.build();
+	}
+
+	private void handle(HttpResponse<?> response) throws TransportException {
+		int code = response.statusCode();
+		if (ThrottledException.isThrottled(code)) {
+			long retryAfter = ThrottledException.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null));
+			if (pacer != null)
+				pacer.throttled(retryAfter);
+			throw new ThrottledException("HTTP transport failed: HTTP " + code, retryAfter);
+		}
+		if (code < 200 || code >= 300)
+			throw new TransportConnectionException("HTTP transport failed: HTTP " + code);
+		if (pacer != null)
+			pacer.succeeded();
+		options.setCookies(response.headers().allValues("Set-Cookie"));
+	}
+}
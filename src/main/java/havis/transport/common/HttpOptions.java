@@ -0,0 +1,190 @@
+package havis.transport.common;
+
+import havis.transport.Messenger;
+import havis.transport.TransportException;
+import havis.transport.Transporter;
+import havis.transport.ValidationException;
+
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.ws.rs.HttpMethod;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Options and session state shared by the HTTP transporters, i.e. timeout,
+ * method, SSL verification, MIME type, basic authorization and cookies
+ */
+class HttpOptions {
+
+	final static String PREFIX = Transporter.PREFIX + "HTTP";
+
+	private int timeout = 1000;
+	private String method = "POST";
+	private boolean bypassSslVerification = false;
+	private String mimeType = Messenger.DEFAULT_MIMETYPE;
+	private String authorization;
+
+	private CookieManager cookieManager = new CookieManager();
+
+	/**
+	 * Parse a common property
+	 *
+	 * @param key
+	 *            the property key
+	 * @param value
+	 *            the property value
+	 * @return true if the key is a common property, false otherwise
+	 * @throws ValidationException
+	 *             if the value is invalid
+	 */
+	boolean parse(String key, String value) throws ValidationException {
+		if (key == null)
+			return false;
+		switch (key) {
+		case Messenger.HTTP_TIMEOUT_PROPERTY:
+			try {
+				timeout = Integer.parseInt(value);
+				if (timeout < 0)
+					throw new ValidationException("Invalid timeout value '" + value + "'");
+			} catch (NumberFormatException e) {
+				throw new ValidationException("Invalid timeout value '" + value + "'", e);
+			}
+			return true;
+		case Messenger.HTTP_METHOD_PROPERTY:
+			method = value;
+			if (method == null || (method = method.trim().toUpperCase()).isEmpty())
+				throw new ValidationException("HTTP method not specified");
+			switch (method) {
+			case HttpMethod.DELETE:
+			case HttpMethod.GET:
+			case HttpMethod.HEAD:
+			case HttpMethod.OPTIONS:
+			case HttpMethod.POST:
+			case HttpMethod.PUT:
+				break;
+			default:
+				throw new ValidationException("Invalid HTTP method value '" + value + "'");
+			}
+			return true;
+		case Messenger.HTTPS_BYPASS_SSL_VERIFICATION_PROPERTY:
+			bypassSslVerification = Boolean.TRUE.toString().equalsIgnoreCase(value);
+			return true;
+		case Messenger.MIMETYPE_PROPERTY:
+			mimeType = value;
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Validate the URI and take the authorization from its user info
+	 *
+	 * @param uri
+	 *            the URI
+	 * @throws ValidationException
+	 *             if the URI has no host
+	 */
+	void init(URI uri) throws ValidationException {
+		if (uri.getHost() == null) {
+			throw new ValidationException("No host specified");
+		}
+		if (uri.getUserInfo() != null)
+			authorization = "Basic " + DatatypeConverter.printBase64Binary(uri.getUserInfo().getBytes());
+	}
+
+	int getTimeout() {
+		return timeout;
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	boolean isBypassSslVerification() {
+		return bypassSslVerification;
+	}
+
+	String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * @return the value of the authorization header or null
+	 */
+	String getAuthorization() {
+		return authorization;
+	}
+
+	/**
+	 * Build the cookie header from the store, expired cookies are dropped by
+	 * the store
+	 *
+	 * @return the value of the cookie header or null
+	 */
+	String getCookies() {
+		List<HttpCookie> cookies = cookieManager.getCookieStore().getCookies();
+		if (cookies.isEmpty())
+			return null;
+		// While joining the Cookies, use ',' or ';' as needed,
+		// most servers are using ';'
+		StringBuilder value = new StringBuilder();
+		for (HttpCookie cookie : cookies) {
+			if (value.length() > 0)
+				value.append(';');
+			// always use simple format
+			value.append(cookie.getName() + "=" + cookie.getValue());
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Store the cookies of a response
+	 *
+	 * @param values
+	 *            the values of the Set-Cookie headers
+	 */
+	void setCookies(List<String> values) {
+		if (values == null || values.isEmpty())
+			return;
+		for (String cookie : values)
+			cookieManager.getCookieStore().add(null, HttpCookie.parse(cookie).get(0));
+	}
+
+	/**
+	 * Replace the path of the URI, HTTP properties can't be changed per
+	 * message
+	 *
+	 * @param uri
+	 *            the URI
+	 * @param path
+	 *            the new path
+	 * @param properties
+	 *            the message properties
+	 * @return the extended URI
+	 * @throws TransportException
+	 *             if a HTTP property is given or the URI is invalid
+	 */
+	static URI extend(URI uri, String path, Map<String, String> properties) throws TransportException {
+		if (properties != null) {
+			for (Entry<String, String> entry : properties.entrySet()) {
+				String key = entry.getKey();
+				if (key != null && key.startsWith(PREFIX)) {
+					throw new TransportException("Property '" + key + "' cannot be changed during transport");
+				}
+			}
+		}
+
+		try {
+			return new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), path, uri.getQuery(), uri.getFragment());
+		} catch (URISyntaxException e) {
+			throw new TransportException("Failed to extend URI path: " + e.getMessage(), e);
+		}
+	}
+}
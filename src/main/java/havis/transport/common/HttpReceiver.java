@@ -0,0 +1,260 @@
+package havis.transport.common;
+
+import havis.transport.TransportException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.HttpMethod;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP listener shared by all subscribers receiving on the same port.
+ * Each subscriber registers a route for its path, bodies posted to that route
+ * are passed to the registered callback. Connections are kept alive and
+ * multiplexed by one selector thread, requests are handled by a bounded pool
+ * of workers. When the pool is exhausted, requests are handled on the
+ * selector thread, which stops accepting further requests meanwhile. The
+ * listener binds to the loopback address unless another address is
+ * configured by "havis.transport.http.receiver.address", e.g. "0.0.0.0" to
+ * receive from other hosts. Routes of subscribers with user info in their URI
+ * only accept requests with the matching basic authorization. Bodies
+ * exceeding the configured maximum size are rejected.
+ */
+class HttpReceiver {
+
+	private final static Logger log = Logger.getLogger(HttpReceiver.class.getName());
+
+	private final static int HTTP_ACCEPTED = 202;
+	private final static int HTTP_UNAUTHORIZED = 401;
+	private final static int HTTP_NOT_FOUND = 404;
+	private final static int HTTP_BAD_METHOD = 405;
+	private final static int HTTP_ENTITY_TOO_LARGE = 413;
+	private final static int HTTP_UNAVAILABLE = 503;
+
+	private final static Map<Integer, HttpReceiver> receivers = new HashMap<>();
+	private final static AtomicInteger count = new AtomicInteger();
+
+	private final int port;
+	private final InetAddress address;
+	private final HttpServer server;
+	private final ThreadPoolExecutor workers;
+	private final Map<String, StreamCallback> routes = new HashMap<>();
+	private final Map<String, String> authorizations = new HashMap<>();
+
+	private HttpReceiver(int port) throws IOException {
+		this.port = port;
+		address = Environment.HTTP_RECEIVER_ADDRESS != null ? InetAddress.getByName(Environment.HTTP_RECEIVER_ADDRESS)
+				: InetAddress.getLoopbackAddress();
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		workers = new ThreadPoolExecutor(Environment.HTTP_RECEIVER_THREADS, Environment.HTTP_RECEIVER_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Environment.HTTP_RECEIVER_QUEUE_SIZE), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Transport-HTTP-Receiver-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		workers.allowCoreThreadTimeOut(true);
+		server.setExecutor(workers);
+		server.start();
+	}
+
+	/**
+	 * Register a route on the receiver listening on the specified port, the
+	 * receiver is started with the first route
+	 *
+	 * @param port
+	 *            the port to listen on
+	 * @param path
+	 *            the path of the route
+	 * @param authorization
+	 *            the authorization header requests must send or null to
+	 *            accept requests without authorization
+	 * @param callback
+	 *            the callback messages are passed to
+	 * @throws TransportException
+	 *             if the port could not be bound or the path is already
+	 *             registered
+	 */
+	static void register(int port, String path, String authorization, StreamCallback callback) throws TransportException {
+		synchronized (receivers) {
+			HttpReceiver receiver = receivers.get(Integer.valueOf(port));
+			if (receiver == null) {
+				try {
+					receiver = new HttpReceiver(port);
+				} catch (IOException e) {
+					throw new TransportException("Failed to listen on port " + port + ": " + e.getMessage(), e);
+				}
+				receivers.put(Integer.valueOf(port), receiver);
+			}
+			receiver.add(path, authorization, callback);
+		}
+	}
+
+	/**
+	 * Remove a route from the receiver listening on the specified port, the
+	 * receiver is stopped with the last route
+	 *
+	 * @param port
+	 *            the port
+	 * @param path
+	 *            the path of the route
+	 */
+	static void unregister(int port, String path) {
+		synchronized (receivers) {
+			HttpReceiver receiver = receivers.get(Integer.valueOf(port));
+			if (receiver != null && receiver.remove(path)) {
+				receivers.remove(Integer.valueOf(port));
+				receiver.stop();
+			}
+		}
+	}
+
+	private void add(final String path, String authorization, StreamCallback callback) throws TransportException {
+		if (routes.containsKey(path))
+			throw new TransportException("Path '" + path + "' is already registered on port " + port);
+		if (authorization == null && !address.isLoopbackAddress())
+			log.log(Level.WARNING, "Path {0} on port {1} accepts requests from {2} without authorization", new Object[] { path, Integer.toString(port), address });
+		routes.put(path, callback);
+		if (authorization != null)
+			authorizations.put(path, authorization);
+		server.createContext(path, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				HttpReceiver.this.handle(path, exchange);
+			}
+		});
+	}
+
+	private boolean remove(String path) {
+		if (routes.remove(path) != null)
+			server.removeContext(path);
+		authorizations.remove(path);
+		return routes.isEmpty();
+	}
+
+	private void stop() {
+		server.stop(0);
+		workers.shutdown();
+	}
+
+	private void handle(String path, HttpExchange exchange) throws IOException {
+		try {
+			// contexts match by prefix, only accept the exact path
+			if (!path.equals(exchange.getRequestURI().getPath())) {
+				drain(exchange, HTTP_NOT_FOUND);
+				return;
+			}
+			String authorization;
+			synchronized (receivers) {
+				authorization = authorizations.get(path);
+			}
+			if (authorization != null && !authorized(authorization, exchange.getRequestHeaders().getFirst("Authorization"))) {
+				exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"" + path + "\"");
+				drain(exchange, HTTP_UNAUTHORIZED);
+				return;
+			}
+			switch (exchange.getRequestMethod()) {
+			case HttpMethod.POST:
+			case HttpMethod.PUT:
+				break;
+			default:
+				exchange.getResponseHeaders().set("Allow", HttpMethod.POST + ", " + HttpMethod.PUT);
+				drain(exchange, HTTP_BAD_METHOD);
+				return;
+			}
+			StreamCallback callback;
+			synchronized (receivers) {
+				callback = routes.get(path);
+			}
+			byte[] data = null;
+			if (length(exchange) <= Environment.HTTP_RECEIVER_MAX_BODY_SIZE)
+				data = read(exchange.getRequestBody());
+			if (data == null) {
+				// the remaining body is discarded by the server or the
+				// connection is closed
+				exchange.sendResponseHeaders(HTTP_ENTITY_TOO_LARGE, -1);
+				return;
+			}
+			boolean accepted = false;
+			if (callback != null) {
+				try {
+					accepted = callback.arrived(path, new ByteArrayInputStream(data));
+				} catch (Exception e) {
+					log.log(Level.FINE, "Failed to deliver message received on path " + path, e);
+				}
+			}
+			exchange.sendResponseHeaders(accepted ? HTTP_ACCEPTED : HTTP_UNAVAILABLE, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static boolean authorized(String expected, String actual) {
+		// compare in constant time to not reveal the matching prefix
+		return actual != null && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void drain(HttpExchange exchange, int code) throws IOException {
+		// the body has to be consumed to keep the connection alive
+		if (length(exchange) <= Environment.HTTP_RECEIVER_MAX_BODY_SIZE) {
+			InputStream stream = exchange.getRequestBody();
+			byte[] bytes = new byte[8192];
+			long total = 0;
+			int length;
+			while (total <= Environment.HTTP_RECEIVER_MAX_BODY_SIZE && (length = stream.read(bytes)) > -1)
+				total += length;
+		}
+		exchange.sendResponseHeaders(code, -1);
+	}
+
+	/**
+	 * @return the announced length of the body, -1 if unknown
+	 */
+	private static long length(HttpExchange exchange) {
+		String value = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				// checked while reading
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the body, null if it exceeds the maximum size
+	 */
+	private static byte[] read(InputStream stream) throws IOException {
+		try (MessageBuffer buffer = MessageBuffer.get()) {
+			byte[] bytes = new byte[8192];
+			int length;
+			while ((length = stream.read(bytes)) > -1) {
+				if (buffer.size() + length > Environment.HTTP_RECEIVER_MAX_BODY_SIZE)
+					return null;
+				buffer.write(bytes, 0, length);
+			}
+			return buffer.toByteArray();
+		}
+	}
+}
@@ -7,40 +7,120 @@ import havis.transport.TransportException;
 import havis.transport.Transporter;
 import havis.transport.ValidationException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.CookieManager;
-import java.net.HttpCookie;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.Queue;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
-import javax.ws.rs.HttpMethod;
-import javax.xml.bind.DatatypeConverter;
 
-class HttpTransporter<T> extends StreamTransporter<T> {
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class HttpTransporter<T> extends StreamTransporter<T> implements AsyncTransporter {
+
+	/**
+	 * Marshal the message into a buffer before sending to provide the exact
+	 * content length, otherwise the message is streamed chunked
+	 */
+	final static String BUFFERED_PROPERTY = Transporter.PREFIX + "HTTP.Buffered";
+	/**
+	 * Maximum number of messages sent in one request, bulk delivery is enabled
+	 * if greater than one
+	 */
+	final static String BULK_SIZE_PROPERTY = Transporter.PREFIX + "HTTP.Bulk.Size";
+	/**
+	 * Maximum number of bytes sent in one bulk request
+	 */
+	final static String BULK_BYTES_PROPERTY = Transporter.PREFIX + "HTTP.Bulk.Bytes";
+	/**
+	 * Maximum time in milliseconds a message is held back for bulk delivery
+	 */
+	final static String BULK_DELAY_PROPERTY = Transporter.PREFIX + "HTTP.Bulk.Delay";
+	/**
+	 * Body format of bulk requests, either "json" for a JSON array or "ndjson"
+	 * for newline delimited JSON
+	 */
+	final static String BULK_FORMAT_PROPERTY = Transporter.PREFIX + "HTTP.Bulk.Format";
+	/**
+	 * Whether requests are spaced according to the rate limiting of the
+	 * server, enabled by default
+	 */
+	final static String PACING_PROPERTY = Transporter.PREFIX + "HTTP.Pacing";
+	/**
+	 * Port of the embedded listener receiving messages on the subscribed
+	 * paths of HTTP URIs, defaults to the port of the environment
+	 */
+	final static String RECEIVER_PORT_PROPERTY = Transporter.PREFIX + "HTTP.Receiver.Port";
+
+	private final static String NDJSON_MIMETYPE = "application/x-ndjson";
+	private final static int HTTP_MULTI_STATUS = 207;
+	private final static int DEFAULT_BULK_BYTES = 1024 * 1024;
+	private final static int DEFAULT_BULK_DELAY = 1000;
+	private final static ObjectMapper mapper = new ObjectMapper();
+	private final static AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Messages collected for one bulk request
+	 */
+	private static class Batch {
+		private final URI uri;
+		private final Buffer data = new Buffer();
+		private final List<SendCallback> callbacks = new ArrayList<>();
+		private ScheduledFuture<?> timer;
+
+		private Batch(URI uri) {
+			this.uri = uri;
+		}
+	}
+
+	private static class Buffer extends ByteArrayOutputStream {
+		private ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
 
 	private URI uri;
-	private int timeout = 1000;
-	private String method = "POST";
-	private boolean bypassSslVerification = false;
-	private String mimeType = Messenger.DEFAULT_MIMETYPE;
+	private final HttpOptions options = new HttpOptions();
+	private boolean buffered = false;
+	private int bulkSize = 1;
+	private int bulkBytes = DEFAULT_BULK_BYTES;
+	private int bulkDelay = DEFAULT_BULK_DELAY;
+	private boolean ndjson = false;
+	private Pacer pacer = new Pacer();
+	private int receiverPort = Environment.HTTP_RECEIVER_PORT;
+	private final List<String> routes = new ArrayList<>();
 
-	private ExecutorService executor = Executors.newSingleThreadExecutor();
-	private CookieManager cookieManager = new CookieManager();
+	private final Map<URI, Batch> batches = new HashMap<>();
+	private final Queue<Batch> ready = new ArrayDeque<>();
+	private final Lock postLock = new ReentrantLock();
+	private ScheduledExecutorService scheduler;
 
 	private SSLSocketFactory current = null;
+	private SSLSocketFactory trustAllContext;
+	private HostnameVerifier trustAllVerifier;
 
 	@Override
 	protected String getDefaultMimeType() {
@@ -55,47 +135,76 @@ class HttpTransporter<T> extends StreamTransporter<T> {
 		if (properties != null) {
 			for (Entry<String, String> entry : properties.entrySet()) {
 				String key = entry.getKey();
-				if (key != null && key.startsWith(Transporter.PREFIX + "HTTP")) {
+				if (options.parse(key, entry.getValue()))
+					continue;
+				if (key != null && key.startsWith(HttpOptions.PREFIX)) {
 					switch (key) {
-					case Messenger.HTTP_TIMEOUT_PROPERTY:
+					case BUFFERED_PROPERTY:
+						buffered = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
+					case BULK_SIZE_PROPERTY:
+						bulkSize = parseBulk(entry.getValue(), "bulk size");
+						break;
+					case BULK_BYTES_PROPERTY:
+						bulkBytes = parseBulk(entry.getValue(), "bulk bytes");
+						break;
+					case BULK_DELAY_PROPERTY:
+						bulkDelay = parseBulk(entry.getValue(), "bulk delay");
+						break;
+					case PACING_PROPERTY:
+						pacer = Boolean.FALSE.toString().equalsIgnoreCase(entry.getValue()) ? null : new Pacer();
+						break;
+					case RECEIVER_PORT_PROPERTY:
 						try {
-							timeout = Integer.parseInt(entry.getValue());
-							if (timeout < 0)
-								throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'");
+							receiverPort = Integer.parseInt(entry.getValue());
 						} catch (NumberFormatException e) {
-							throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'", e);
-						}
-						break;
-					case Messenger.HTTP_METHOD_PROPERTY:
-						method = entry.getValue();
-						if (method == null || (method = method.trim().toUpperCase()).isEmpty())
-							throw new ValidationException("HTTP method not specified");
-						switch (method) {
-						case HttpMethod.DELETE:
-						case HttpMethod.GET:
-						case HttpMethod.HEAD:
-						case HttpMethod.OPTIONS:
-						case HttpMethod.POST:
-						case HttpMethod.PUT:
-							break;
-						default:
-							throw new ValidationException("Invalid HTTP method value '" + entry.getValue() + "'");
+							throw new ValidationException("Invalid receiver port value '" + entry.getValue() + "'", e);
 						}
+						if (receiverPort < 0 || receiverPort > 0xFFFF)
+							throw new ValidationException("Invalid receiver port value '" + entry.getValue() + "'");
 						break;
-					case Messenger.HTTPS_BYPASS_SSL_VERIFICATION_PROPERTY:
-						bypassSslVerification = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+					case BULK_FORMAT_PROPERTY:
+						String format = entry.getValue() != null ? entry.getValue().trim().toLowerCase() : null;
+						if ("ndjson".equals(format))
+							ndjson = true;
+						else if ("json".equals(format))
+							ndjson = false;
+						else
+							throw new ValidationException("Invalid bulk format value '" + entry.getValue() + "'");
 						break;
 					default:
 						throw new ValidationException("Unknown property key '" + key + "'");
 					}
-				} else if (Messenger.MIMETYPE_PROPERTY.equals(key)) {
-					mimeType = entry.getValue();
 				}
 			}
 		}
 
-		if (uri.getHost() == null) {
-			throw new ValidationException("No host specified");
+		options.init(uri);
+		if (options.isBypassSslVerification()) {
+			trustAllContext = SSLContextManager.createTrustedAllContext();
+			trustAllVerifier = SSLContextManager.createTrustAllVerifier();
+		}
+
+		if (bulkSize > 1 && scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Transport-HTTP-Bulk-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	private static int parseBulk(String value, String name) throws ValidationException {
+		try {
+			int result = Integer.parseInt(value);
+			if (result < 1)
+				throw new ValidationException("Value '" + value + "' for " + name + " must be greater than zero");
+			return result;
+		} catch (NumberFormatException e) {
+			throw new ValidationException("Invalid " + name + " value '" + value + "'", e);
 		}
 	}
 
@@ -115,126 +224,388 @@ class HttpTransporter<T> extends StreamTransporter<T> {
 
 	@Override
 	protected void send(Marshaller<T> marshaller, T message, String name, String path, Map<String, String> properties) throws TransportException {
-		if (properties != null) {
-			for (Entry<String, String> entry : properties.entrySet()) {
-				String key = entry.getKey();
-				if (key != null && key.startsWith(Transporter.PREFIX + "HTTP")) {
-					throw new TransportException("Property '" + key + "' cannot be changed during transport");
+		send(HttpOptions.extend(this.uri, path, properties), options.getMimeType(), -1, marshaller, message);
+	}
+
+	@Override
+	protected void send(final Marshaller<T> marshaller, T message) throws TransportException {
+		send(this.uri, options.getMimeType(), -1, marshaller, message);
+	}
+
+	@Override
+	protected void sendRaw(RawPayload payload) throws TransportException {
+		send(this.uri, payload.getMimeType() != null ? payload.getMimeType() : options.getMimeType(), payload.getLength(), payload.<T> getMarshaller(), null);
+	}
+
+	@Override
+	protected void sendRaw(RawPayload payload, String name, String path, Map<String, String> properties) throws TransportException {
+		send(HttpOptions.extend(this.uri, path, properties), payload.getMimeType() != null ? payload.getMimeType() : options.getMimeType(), payload.getLength(), payload.<T> getMarshaller(), null);
+	}
+
+	@Override
+	public boolean isAsync() {
+		return bulkSize > 1;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, SendCallback callback) {
+		try {
+			URI uri = path != null ? HttpOptions.extend(this.uri, path, properties) : this.uri;
+			try (MessageBuffer buffer = MessageBuffer.get()) {
+				RawPayload payload = RawPayload.of(message);
+				if (payload != null)
+					payload.writeTo(buffer);
+				else
+					getMarshaller().marshal((T) message, buffer);
+				add(uri, buffer, callback);
+			}
+		} catch (IOException e) {
+			callback.failed(new TransportException("Failed to write message to bulk: " + e.getMessage(), e));
+		} catch (TransportException e) {
+			callback.failed(e);
+		}
+		post();
+	}
+
+	private void add(final URI uri, MessageBuffer data, SendCallback callback) {
+		synchronized (batches) {
+			Batch batch = batches.get(uri);
+			if (batch != null && batch.data.size() + data.size() + 2 > bulkBytes) {
+				// message doesn't fit into the current request
+				batches.remove(uri);
+				ready.add(batch);
+				batch = null;
+			}
+			if (batch == null) {
+				final Batch created = batch = new Batch(uri);
+				batches.put(uri, batch);
+				try {
+					batch.timer = scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (batches) {
+								if (batches.get(uri) != created)
+									return;
+								batches.remove(uri);
+								ready.add(created);
+							}
+							post();
+						}
+					}, bulkDelay, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// disposed, fails on post
 				}
 			}
+
+			if (ndjson) {
+				batch.data.write(data.array(), 0, data.size());
+				batch.data.write('\n');
+			} else {
+				batch.data.write(batch.callbacks.isEmpty() ? '[' : ',');
+				batch.data.write(data.array(), 0, data.size());
+			}
+			batch.callbacks.add(callback);
+
+			if (batch.callbacks.size() >= bulkSize || batch.data.size() >= bulkBytes) {
+				batches.remove(uri);
+				ready.add(batch);
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		synchronized (batches) {
+			for (Batch batch : batches.values())
+				ready.add(batch);
+			batches.clear();
 		}
+		post();
+	}
 
-		URI extendedUri;
+	/**
+	 * Post all batches which are ready in order
+	 */
+	private void post() {
+		synchronized (batches) {
+			if (ready.isEmpty())
+				return;
+		}
+		postLock.lock();
 		try {
-			extendedUri = new URI(this.uri.getScheme(), this.uri.getUserInfo(), this.uri.getHost(), this.uri.getPort(), path, this.uri.getQuery(),
-					this.uri.getFragment());
-		} catch (URISyntaxException e) {
-			throw new TransportException("Failed to extend URI path: " + e.getMessage(), e);
+			while (true) {
+				Batch batch;
+				synchronized (batches) {
+					batch = ready.poll();
+				}
+				if (batch == null)
+					break;
+				post(batch);
+			}
+		} finally {
+			postLock.unlock();
 		}
-		send(extendedUri, marshaller, message);
 	}
 
-	@Override
-	protected void send(final Marshaller<T> marshaller, T message) throws TransportException {
-		send(this.uri, marshaller, message);
+	private void post(Batch batch) {
+		if (batch.timer != null)
+			batch.timer.cancel(false);
+		if (!ndjson)
+			batch.data.write(']');
+
+		RawPayload payload = new RawPayload(batch.data.toByteBuffer(), null);
+		byte[] response;
+		try {
+			if (scheduler.isShutdown())
+				throw new TransportException("Transporter has been disposed");
+			response = send(batch.uri, ndjson ? NDJSON_MIMETYPE : options.getMimeType(), payload.getLength(), payload.<T> getMarshaller(), null);
+		} catch (TransportException e) {
+			// the whole batch failed
+			for (SendCallback callback : batch.callbacks)
+				callback.failed(e);
+			return;
+		}
+
+		if (response == null) {
+			for (SendCallback callback : batch.callbacks)
+				callback.completed();
+		} else {
+			complete(batch, response);
+		}
+	}
+
+	/**
+	 * Complete the messages of a batch according to a multi-status response,
+	 * i.e. a JSON array containing the HTTP status of each message in order,
+	 * either as number or as object with a "status" field
+	 */
+	private void complete(Batch batch, byte[] response) {
+		JsonNode results;
+		try {
+			results = mapper.readTree(response);
+		} catch (IOException e) {
+			results = null;
+		}
+		if (results == null || !results.isArray()) {
+			TransportException error = new TransportException("Invalid multi-status response for bulk request to '" + batch.uri + "'");
+			for (SendCallback callback : batch.callbacks)
+				callback.failed(error);
+			return;
+		}
+		for (int i = 0; i < batch.callbacks.size(); i++) {
+			SendCallback callback = batch.callbacks.get(i);
+			JsonNode result = results.get(i);
+			int code = result == null ? -1 : result.isNumber() ? result.asInt() : result.path("status").asInt(-1);
+			if (code >= HttpURLConnection.HTTP_OK && code < HttpURLConnection.HTTP_OK + 100) {
+				callback.completed();
+			} else if (code == -1) {
+				callback.failed(new TransportException("HTTP transport failed: no status for bulk message " + i));
+			} else if (code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == ThrottledException.HTTP_TOO_MANY_REQUESTS || code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				callback.failed(new TransportConnectionException("HTTP transport failed: HTTP " + code + " for bulk message " + i));
+			} else {
+				callback.failed(new TransportException("HTTP transport failed: HTTP " + code + " for bulk message " + i));
+			}
+		}
 	}
 
-	private void send(URI uri, final Marshaller<T> marshaller, final T message) throws TransportException {
+	/**
+	 * @return the response body of a multi-status response, null otherwise
+	 */
+	private byte[] send(URI uri, String contentType, long length, Marshaller<T> marshaller, T message) throws TransportException {
+		if (pacer != null) {
+			try {
+				pacer.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TransportException("HTTP transport was interrupted", e);
+			}
+		}
+
+		HttpURLConnection connection;
 		try {
-			final HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+			connection = (HttpURLConnection) uri.toURL().openConnection();
+		} catch (IOException e) {
+			throw new TransportException("HTTP transport failed: " + e.getMessage(), e);
+		}
 
-			SSLSocketFactory trustAllContext = SSLContextManager.createTrustedAllContext();
-			HostnameVerifier trustAllVerifier = SSLContextManager.createTrustAllVerifier();
-			if (bypassSslVerification && connection instanceof HttpsURLConnection && trustAllContext != null && trustAllVerifier != null) {
+		if (connection instanceof HttpsURLConnection) {
+			// connections are only reused for the same socket factory instance
+			if (options.isBypassSslVerification() && trustAllContext != null && trustAllVerifier != null) {
 				((HttpsURLConnection) connection).setSSLSocketFactory(trustAllContext);
 				((HttpsURLConnection) connection).setHostnameVerifier(trustAllVerifier);
-			} else {
-				if (current != null && connection instanceof HttpsURLConnection) {
-					((HttpsURLConnection) connection).setSSLSocketFactory(current);
-				}
+			} else if (current != null) {
+				((HttpsURLConnection) connection).setSSLSocketFactory(current);
 			}
+		}
+
+		// timeouts bound blocking socket operations, which don't respond to
+		// interrupts
+		connection.setConnectTimeout(options.getTimeout());
+		connection.setReadTimeout(options.getTimeout());
+		connection.setDoOutput(true);
+		try {
+			connection.setRequestMethod(options.getMethod());
+		} catch (IOException e) {
+			throw new TransportException("HTTP transport failed: " + e.getMessage(), e);
+		}
+		connection.setRequestProperty("Content-type", contentType);
+
+		String cookies = options.getCookies();
+		if (cookies != null)
+			connection.setRequestProperty("Cookie", cookies);
+		String authorization = options.getAuthorization();
+		if (authorization != null)
+			connection.setRequestProperty("Authorization", authorization);
 
-			connection.setConnectTimeout(timeout);
-			connection.setReadTimeout(timeout);
-			connection.setDoOutput(true);
-			connection.setRequestMethod(method);
-			connection.setRequestProperty("Content-type", mimeType);
-
-			if (cookieManager.getCookieStore().getCookies().size() > 0) {
-				// While joining the Cookies, use ',' or ';' as needed,
-				// most servers are using ';'
-				StringBuilder value = new StringBuilder();
-				for (HttpCookie cookie : cookieManager.getCookieStore().getCookies()) {
-					if (value.length() > 0)
-						value.append(';');
-					// always use simple format
-					value.append(cookie.getName() + "=" + cookie.getValue());
+		try {
+			if (length > -1) {
+				// stream data of known length directly without buffering
+				connection.setFixedLengthStreamingMode(length);
+				write(connection, marshaller, message);
+			} else if (buffered) {
+				// marshal into a reused buffer to send the exact length
+				try (MessageBuffer buffer = MessageBuffer.get()) {
+					marshaller.marshal(message, buffer);
+					connection.setFixedLengthStreamingMode(buffer.size());
+					try (OutputStream stream = connection.getOutputStream()) {
+						buffer.writeTo(stream);
+					}
 				}
-				connection.setRequestProperty("Cookie", value.toString());
+			} else {
+				// stream the marshalled data directly to the socket instead of
+				// letting the connection buffer the whole body
+				connection.setChunkedStreamingMode(0);
+				write(connection, marshaller, message);
 			}
 
-			if (uri.getUserInfo() != null) {
-				String basicAuth = "Basic " + DatatypeConverter.printBase64Binary(uri.getUserInfo().getBytes());
-				connection.setRequestProperty("Authorization", basicAuth);
+			int code = connection.getResponseCode();
+			if (code < HttpURLConnection.HTTP_OK || code >= HttpURLConnection.HTTP_OK + 100) {
+				String response = connection.getResponseMessage();
+				// consume the error to keep the connection alive
+				drain(connection, connection.getErrorStream());
+				if (ThrottledException.isThrottled(code)) {
+					long retryAfter = ThrottledException.parseRetryAfter(connection.getHeaderField("Retry-After"));
+					if (pacer != null)
+						pacer.throttled(retryAfter);
+					throw new ThrottledException("HTTP transport failed: HTTP " + code + ": " + response, retryAfter);
+				}
+				throw new IOException("HTTP " + code + ": " + response);
 			}
+			if (pacer != null)
+				pacer.succeeded();
+			for (Entry<String, List<String>> entry : connection.getHeaderFields().entrySet()) {
+				if ("Set-Cookie".equalsIgnoreCase(entry.getKey()))
+					options.setCookies(entry.getValue());
+			}
+			if (code == HTTP_MULTI_STATUS) {
+				try (InputStream stream = connection.getInputStream()) {
+					ByteArrayOutputStream response = new ByteArrayOutputStream();
+					byte[] buffer = new byte[512];
+					int count;
+					while ((count = stream.read(buffer)) > -1)
+						response.write(buffer, 0, count);
+					return response.toByteArray();
+				}
+			}
+			// consume the response to hand the connection back to the
+			// keep-alive cache instead of closing it
+			drain(connection, connection.getInputStream());
+			return null;
+		} catch (IOException e) {
+			// don't reuse a broken connection
+			connection.disconnect();
+			throw new TransportConnectionException("HTTP transport failed: " + e.getMessage(), e);
+		} catch (ThrottledException e) {
+			// the response was consumed, the connection can be reused
+			throw e;
+		} catch (TransportException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
 
-			// Since the OpenJDK SocketInputStream.read0 method might hang and
-			// not respond to Thread.interrupt calls, we have to wrap the
-			// connection handling into a separate thread. If waiting on the
-			// thread is interrupted, we try canceling the socket operation,
-			// this might fail and the thread will hang until the socket timeout
-			// is reached.
-			Future<Void> task = executor.submit(new Callable<Void>() {
+	private void write(HttpURLConnection connection, Marshaller<T> marshaller, T message) throws IOException, TransportException {
+		try (OutputStream stream = connection.getOutputStream()) {
+			marshaller.marshal(message, stream);
+		}
+	}
+
+	private void drain(HttpURLConnection connection, InputStream stream) throws IOException {
+		if (stream != null) {
+			int code = connection.getResponseCode();
+			// informational, no content and not modified responses and
+			// responses to HEAD requests never have a body
+			boolean empty = code < HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED
+					|| "HEAD".equals(connection.getRequestMethod());
+			if (empty || connection.getContentLengthLong() > -1 || "chunked".equalsIgnoreCase(connection.getHeaderField("Transfer-Encoding"))) {
+				try {
+					byte[] buffer = new byte[512];
+					while (stream.read(buffer) > -1)
+						;
+				} finally {
+					stream.close();
+				}
+			} else {
+				// the response ends with the connection, which can't be reused
+				connection.disconnect();
+			}
+		}
+	}
 
+	@Override
+	protected void subscribe(final String path, final StreamCallback callback) throws TransportException {
+		// the receiver only listens on plain HTTP
+		if ("https".equalsIgnoreCase(uri.getScheme()))
+			throw new TransportException("Receiving messages over HTTPS is not supported");
+		String route = route(path);
+		synchronized (routes) {
+			// requests have to authorize with the user info of the URI
+			HttpReceiver.register(receiverPort, route, options.getAuthorization(), new StreamCallback() {
 				@Override
-				public Void call() throws Exception {
-					connection.connect();
-					try {
-						marshaller.marshal(message, connection.getOutputStream());
-						int code = connection.getResponseCode();
-						if (code < HttpURLConnection.HTTP_OK || code >= HttpURLConnection.HTTP_OK + 100) {
-							throw new IOException("HTTP " + code + ": " + connection.getResponseMessage());
-						}
-						for (Entry<String, List<String>> entry : connection.getHeaderFields().entrySet()) {
-							if ("Set-Cookie".equalsIgnoreCase(entry.getKey()) && entry.getValue() != null) {
-								for (String cookie : entry.getValue()) {
-									cookieManager.getCookieStore().add(null, HttpCookie.parse(cookie).get(0));
-								}
-							}
-						}
-					} catch (Exception e) {
-						throw e;
-					} finally {
-						connection.disconnect();
-					}
-					return null;
+				public boolean arrived(String route, InputStream stream) {
+					// callbacks are registered by the subscribed path
+					return callback.arrived(path, stream);
 				}
 			});
+			routes.add(route);
+		}
+	}
 
-			// wait for the connection handling to finish
-			try {
-				task.get();
-			} catch (InterruptedException e) {
-				// waiting was interrupted, cancel
-				task.cancel(true);
-				try {
-					connection.disconnect();
-				} catch (Exception ex) {
-					// ignore
-				}
-				Thread.currentThread().interrupt();
-			}
-		} catch (IOException e) {
-			throw new TransportException("HTTP transport failed: " + e.getMessage(), e);
-		} catch (ExecutionException e) {
-			if (e.getCause() instanceof IOException)
-				throw new TransportConnectionException("HTTP transport failed: " + e.getMessage(), e);
-			throw new TransportException("HTTP transport failed: " + e.getMessage(), e);
+	@Override
+	protected void unsubscribe(String path) throws TransportException {
+		String route = route(path);
+		synchronized (routes) {
+			if (routes.remove(route))
+				HttpReceiver.unregister(receiverPort, route);
 		}
 	}
 
+	private String route(String path) {
+		// without a path, messages are received on the path of the URI
+		if (path == null || path.isEmpty())
+			path = uri.getPath();
+		if (path == null || path.isEmpty())
+			return "/";
+		return path.startsWith("/") ? path : "/" + path;
+	}
+
 	@Override
 	public void dispose() {
-		executor.shutdownNow();
+		super.dispose();
+		synchronized (routes) {
+			for (String route : routes)
+				HttpReceiver.unregister(receiverPort, route);
+			routes.clear();
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			synchronized (batches) {
+				ready.addAll(batches.values());
+				batches.clear();
+			}
+			// fails the pending messages
+			post();
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package havis.transport.common;
+
+import havis.transport.ValidationException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatcher for inbound messages, decouples the delivery to callbacks from
+ * the I/O thread of the transport. Messages of the same path are delivered
+ * in order if ordering is enabled.
+ */
+class InboundDispatcher {
+
+	private final static Logger log = Logger.getLogger(InboundDispatcher.class.getName());
+
+	private final static long KEEP_ALIVE = 60;
+	private final static AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Behavior if the queue of the dispatcher is full
+	 */
+	enum Policy {
+		/**
+		 * Block the I/O thread until the queue has capacity
+		 */
+		BLOCK,
+		/**
+		 * Discard the arriving message
+		 */
+		DISCARD,
+		/**
+		 * Discard the oldest queued message
+		 */
+		DISCARD_OLDEST,
+		/**
+		 * Deliver the message on the I/O thread, blocks like {@link #BLOCK}
+		 * if messages are ordered, since queued messages of the same path
+		 * would be overtaken
+		 */
+		CALLER_RUNS;
+
+		static Policy parse(String value) throws ValidationException {
+			if (value != null) {
+				switch (value.trim().toLowerCase()) {
+				case "block":
+					return BLOCK;
+				case "discard":
+					return DISCARD;
+				case "discard-oldest":
+					return DISCARD_OLDEST;
+				case "caller-runs":
+					return CALLER_RUNS;
+				}
+			}
+			throw new ValidationException("Invalid inbound policy value '" + value + "'");
+		}
+	}
+
+	private final ThreadPoolExecutor[] lanes;
+	private final boolean ordered;
+	private final Policy policy;
+
+	/**
+	 * Creates a new dispatcher
+	 *
+	 * @param threads
+	 *            the number of threads delivering messages
+	 * @param queueSize
+	 *            the maximum number of pending messages per thread
+	 * @param ordered
+	 *            true to deliver messages of the same path in order, false
+	 *            to deliver messages on any free thread
+	 * @param policy
+	 *            the behavior if the queue is full
+	 */
+	InboundDispatcher(int threads, int queueSize, boolean ordered, Policy policy) {
+		this.ordered = ordered;
+		this.policy = policy;
+		final String name = "Transport-Inbound-" + count.incrementAndGet();
+		ThreadFactory factory = new ThreadFactory() {
+			private final AtomicInteger number = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + number.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		RejectedExecutionHandler handler = new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+				throw new RejectedExecutionException();
+			}
+		};
+		// one single threaded lane per thread keeps the order of each path
+		this.lanes = new ThreadPoolExecutor[ordered ? threads : 1];
+		int size = ordered ? 1 : threads;
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ThreadPoolExecutor(size, size, KEEP_ALIVE, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), factory, handler);
+			lanes[i].allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * Dispatch a message
+	 *
+	 * @param path
+	 *            the path the message arrived on
+	 * @param task
+	 *            the delivery of the message
+	 * @return true if the message was accepted, false if it was discarded
+	 */
+	boolean dispatch(String path, Runnable task) {
+		ThreadPoolExecutor lane = lanes[lanes.length == 1 ? 0 : (path != null ? path.hashCode() & Integer.MAX_VALUE : 0) % lanes.length];
+		try {
+			lane.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			if (lane.isShutdown())
+				return false;
+		}
+		BlockingQueue<Runnable> queue = lane.getQueue();
+		switch (ordered && policy == Policy.CALLER_RUNS ? Policy.BLOCK : policy) {
+		case BLOCK:
+			try {
+				queue.put(task);
+				// the worker might have timed out in the meantime
+				lane.prestartCoreThread();
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		case DISCARD_OLDEST:
+			queue.poll();
+			if (queue.offer(task)) {
+				lane.prestartCoreThread();
+				return true;
+			}
+			break;
+		case CALLER_RUNS:
+			task.run();
+			return true;
+		default:
+			break;
+		}
+		log.log(Level.FINE, "Inbound queue for path {0} is full, message was discarded", path);
+		return false;
+	}
+
+	/**
+	 * Stop delivering messages, pending messages will be discarded
+	 */
+	void shutdown() {
+		for (ThreadPoolExecutor lane : lanes)
+			lane.shutdownNow();
+	}
+}
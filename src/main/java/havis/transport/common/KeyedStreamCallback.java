@@ -0,0 +1,25 @@
+package havis.transport.common;
+
+import java.io.InputStream;
+
+/**
+ * Stream callback which orders the messages of a path by a key, e.g. the
+ * topic of a message received by a wildcard subscription
+ */
+interface KeyedStreamCallback extends StreamCallback {
+
+	/**
+	 * Called when a message arrived, the stream might be read after this
+	 * method returned
+	 * 
+	 * @param path
+	 *            the path the message arrived on
+	 * @param key
+	 *            the key of the message, messages with the same key are
+	 *            delivered in order if ordering is enabled
+	 * @param stream
+	 *            the stream containing the message
+	 * @return true if the message was accepted, false if it was discarded
+	 */
+	boolean arrived(String path, String key, InputStream stream);
+}
@@ -0,0 +1,136 @@
+package havis.transport.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer to marshal messages into. Buffers are thread-confined
+ * and reused, use {@link #get()} to retrieve the buffer of the current thread
+ * and {@link #close()} to hand it back after use.
+ */
+class MessageBuffer extends OutputStream {
+
+	private final static int INITIAL_CAPACITY = 4096;
+	private final static int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+	private final static ThreadLocal<MessageBuffer> buffers = new ThreadLocal<MessageBuffer>() {
+		@Override
+		protected MessageBuffer initialValue() {
+			return new MessageBuffer(true);
+		}
+	};
+
+	private final boolean pooled;
+	private boolean used;
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int count;
+
+	private MessageBuffer(boolean pooled) {
+		this.pooled = pooled;
+	}
+
+	/**
+	 * Get the buffer of the current thread. If the buffer of the current
+	 * thread is already in use, a new unpooled buffer will be returned.
+	 *
+	 * @return the empty buffer
+	 */
+	static MessageBuffer get() {
+		MessageBuffer buffer = buffers.get();
+		if (buffer.used)
+			return new MessageBuffer(false);
+		buffer.used = true;
+		buffer.count = 0;
+		return buffer;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity < 0)
+			throw new OutOfMemoryError("Message exceeds maximum buffer size");
+		if (capacity > buffer.length) {
+			int newCapacity = buffer.length << 1;
+			if (newCapacity < capacity)
+				newCapacity = capacity;
+			buffer = Arrays.copyOf(buffer, newCapacity);
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off > b.length - len)
+			throw new IndexOutOfBoundsException();
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Write the content of the buffer to the specified stream
+	 *
+	 * @param stream
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	void writeTo(OutputStream stream) throws IOException {
+		stream.write(buffer, 0, count);
+	}
+
+	/**
+	 * @return the backing array, valid from offset 0 to {@link #size()}
+	 */
+	byte[] array() {
+		return buffer;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * Discard the written bytes
+	 */
+	void reset() {
+		count = 0;
+	}
+
+	/**
+	 * @return a byte buffer wrapping the written bytes without copying, only
+	 *         valid until the buffer is closed
+	 */
+	ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buffer, 0, count);
+	}
+
+	/**
+	 * @return a copy of the written bytes
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, count);
+	}
+
+	/**
+	 * Hand the buffer back for reuse by the current thread
+	 */
+	@Override
+	public void close() {
+		count = 0;
+		if (pooled) {
+			// don't hold on to large buffers after sending huge messages
+			if (buffer.length > MAX_RETAINED_CAPACITY)
+				buffer = new byte[INITIAL_CAPACITY];
+			used = false;
+		}
+	}
+}
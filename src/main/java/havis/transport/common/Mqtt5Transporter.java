@@ -0,0 +1,569 @@
+package havis.transport.common;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.SocketFactory;
+
+import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.MqttSubscription;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.util.MqttTopicValidator;
+
+import havis.transport.Marshaller;
+import havis.transport.Messenger;
+import havis.transport.TransportConnectionException;
+import havis.transport.TransportException;
+import havis.transport.Transporter;
+import havis.transport.ValidationException;
+
+/**
+ * MQTT 5 transporter, uses the same URI and properties as the
+ * {@link MqttTransporter}. The client replaces the topics of published
+ * messages by topic aliases as far as the broker allows, the messages in
+ * flight are limited by the receive maximum of the broker.
+ *
+ * @param <T>
+ *            type of messages
+ */
+public class Mqtt5Transporter<T> extends StreamTransporter<T> implements AsyncTransporter {
+
+	private final static Logger log = Logger.getLogger(Mqtt5Transporter.class.getName());
+
+	/**
+	 * Message expiry interval in seconds, messages not delivered by the
+	 * broker within the interval are discarded
+	 */
+	public final static String MESSAGE_EXPIRY_PROPERTY = Transporter.PREFIX + "MQTT.MessageExpiry";
+
+	private final static String CLIENT_ID_PARAMETER = "clientid";
+	private final static String QOS_PARAMETER = "qos";
+
+	private final static int DEFAULT_PORT = 1883;
+	private final static int DEFAULT_TIMEOUT = 1000;
+	private final static int DEFAULT_MAX_IN_FLIGHT = 10;
+	private final static int DEFAULT_RECEIVE_MAXIMUM = 65535;
+	private final static int KEEP_ALIVE = 60;
+
+	private URI uri;
+
+	private String topic;
+	private int qos = 1;
+	private int timeout = DEFAULT_TIMEOUT;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private long messageExpiry;
+	private String sharedGroup;
+	private boolean orderByTopic;
+
+	private String serverUri;
+	private String clientId;
+	private String userName;
+	private String password;
+	private SocketFactory socketFactory;
+	private MqttAsyncClient client;
+	private volatile Semaphore inFlight;
+	private boolean subscriptionIdentifiers = true;
+	private int subscriptionIdentifier;
+	private boolean disposed;
+
+	private Map<String, IMqttMessageListener> subscriptions = new ConcurrentHashMap<String, IMqttMessageListener>();
+	private Map<String, Integer> identifiers = new ConcurrentHashMap<String, Integer>();
+
+	@Override
+	protected String getDefaultMimeType() {
+		return "application/json";
+	}
+
+	@Override
+	protected void init(URI uri, Map<String, String> properties) throws ValidationException {
+		if (uri == null)
+			throw new ValidationException("URI must not be null");
+		this.uri = uri;
+		if (uri.getPath() == null)
+			throw new ValidationException("MQTT topic must be specified using the path of the URI");
+		topic = uri.getPath();
+		// Checks for subscriber special chars
+		if (topic.contains("#") || topic.contains("+")) {
+			throw new ValidationException("MQTT topic should not contain '#' or '+'");
+		}
+		topic = removeLeadingSlash(topic);
+		String userInfo = uri.getUserInfo();
+		if (userInfo != null && userInfo.length() > 0) {
+			String[] auth = userInfo.split(":");
+			if (auth.length > 0) {
+				userName = auth[0];
+				if (auth.length > 1) {
+					password = auth[1];
+				}
+			}
+		}
+		if (properties != null) {
+			for (Entry<String, String> entry : properties.entrySet()) {
+				String key = entry.getKey();
+				if (key != null && key.startsWith(Transporter.PREFIX + "MQTT")) {
+					switch (key) {
+					case Messenger.MQTT_TIMEOUT_PROPERTY:
+						try {
+							timeout = Integer.parseInt(entry.getValue());
+							if (timeout < 0)
+								throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'");
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'", e);
+						}
+						break;
+					case MqttTransporter.MAX_IN_FLIGHT_PROPERTY:
+						try {
+							maxInFlight = Integer.parseInt(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid max in flight value '" + entry.getValue() + "'", e);
+						}
+						if (maxInFlight < 1)
+							throw new ValidationException("Value '" + entry.getValue() + "' for max in flight must be greater than zero");
+						break;
+					case MqttTransporter.PERSISTENCE_PROPERTY:
+						if (!"memory".equalsIgnoreCase(entry.getValue() != null ? entry.getValue().trim() : null))
+							throw new ValidationException("Invalid MQTT 5 persistence value '" + entry.getValue() + "', only 'memory' is supported");
+						break;
+					case MqttTransporter.SHARED_GROUP_PROPERTY:
+						sharedGroup = entry.getValue();
+						if (sharedGroup == null || sharedGroup.isEmpty() || sharedGroup.contains("/") || sharedGroup.contains("#")
+								|| sharedGroup.contains("+"))
+							throw new ValidationException("Invalid MQTT shared group value '" + entry.getValue() + "'");
+						break;
+					case MqttTransporter.ORDER_BY_TOPIC_PROPERTY:
+						orderByTopic = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
+					case MESSAGE_EXPIRY_PROPERTY:
+						try {
+							messageExpiry = Long.parseLong(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid message expiry value '" + entry.getValue() + "'", e);
+						}
+						if (messageExpiry < 1)
+							throw new ValidationException("Value '" + entry.getValue() + "' for message expiry must be greater than zero");
+						break;
+					default:
+						throw new ValidationException("Unknown property key '" + key + "'");
+					}
+				}
+			}
+		}
+
+		Map<String, String> queryParameters = Utils.getQueryParameters(uri);
+		if (!queryParameters.containsKey(CLIENT_ID_PARAMETER))
+			throw new ValidationException("'" + CLIENT_ID_PARAMETER + "' must be set as URI query parameter for MQTT transporter");
+
+		if (queryParameters.containsKey(QOS_PARAMETER)) {
+			try {
+				qos = Integer.parseInt(queryParameters.get(QOS_PARAMETER));
+			} catch (NumberFormatException e) {
+				throw new ValidationException("Invalid MQTT qos value '" + queryParameters.get(QOS_PARAMETER) + "'", e);
+			}
+			if (qos < 0 || qos > 2)
+				throw new ValidationException("Invalid MQTT qos value '" + queryParameters.get(QOS_PARAMETER) + "'");
+		}
+
+		if (uri.getHost() == null) {
+			throw new ValidationException("No MQTT host specified");
+		}
+
+		Logger.getLogger("org.eclipse.paho.mqttv5.client.internal.ClientState").setLevel(Level.OFF);
+
+		serverUri = ("mqtts5".equals(uri.getScheme()) ? "ssl" : "tcp") + "://" + uri.getHost() + ":" + (uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+		clientId = queryParameters.get(CLIENT_ID_PARAMETER);
+		if (clientId == null || clientId.isEmpty() || clientId.length() > 65535)
+			throw new ValidationException("Invalid MQTT client ID '" + clientId + "'");
+	}
+
+	/**
+	 * @return the client, created on first use and connected
+	 */
+	private synchronized MqttAsyncClient client() throws TransportException {
+		if (disposed)
+			throw new TransportException("MQTT client not initialized");
+		try {
+			if (client == null)
+				client = createClient();
+			if (!client.isConnected()) {
+				MqttConnectionOptions connectOptions = new MqttConnectionOptions();
+				if (userName != null)
+					connectOptions.setUserName(userName);
+				if (password != null)
+					connectOptions.setPassword(password.getBytes(StandardCharsets.UTF_8));
+				if (socketFactory != null)
+					connectOptions.setSocketFactory(socketFactory);
+				connectOptions.setConnectionTimeout(Math.max((int) Math.round(timeout / 1000.0), 1));
+				connectOptions.setKeepAliveInterval(KEEP_ALIVE);
+				connectOptions.setAutomaticReconnect(true);
+				IMqttToken token = client.connect(connectOptions);
+				token.waitForCompletion(timeout);
+				// the client fails messages exceeding the receive maximum
+				MqttProperties properties = token.getResponseProperties();
+				Integer receiveMaximum = properties != null ? properties.getReceiveMaximum() : null;
+				subscriptionIdentifiers = properties == null || properties.isSubscriptionIdentifiersAvailable();
+				inFlight = new Semaphore(Math.min(maxInFlight, receiveMaximum != null ? receiveMaximum.intValue() : DEFAULT_RECEIVE_MAXIMUM));
+			}
+		} catch (MqttException e) {
+			switch (e.getReasonCode()) {
+			case MqttClientException.REASON_CODE_SERVER_CONNECT_ERROR:
+			case MqttClientException.REASON_CODE_CLIENT_TIMEOUT:
+			case MqttClientException.REASON_CODE_CONNECT_IN_PROGRESS:
+				throw new TransportConnectionException("Failed to connect to MQTT URI '" + uri + "': " + e.getMessage(), e);
+			default:
+				throw new TransportException("Failed to connect to MQTT URI '" + uri + "': " + e.getMessage(), e);
+			}
+		}
+		return client;
+	}
+
+	private MqttAsyncClient createClient() throws MqttException {
+		final MqttAsyncClient client = new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+		client.setCallback(new MqttCallback() {
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				deliver(topic, message);
+			}
+
+			@Override
+			public void deliveryComplete(IMqttToken token) {
+			}
+
+			@Override
+			public void disconnected(MqttDisconnectResponse response) {
+				// TODO Monitoring
+				log.log(Level.WARNING, "Connection lost to " + serverUri + ": " + response);
+			}
+
+			@Override
+			public void mqttErrorOccurred(MqttException exception) {
+				log.log(Level.WARNING, "MQTT error on connection to " + serverUri + ": " + exception.getMessage(), exception);
+			}
+
+			@Override
+			public void connectComplete(boolean reconnect, String serverUri) {
+				if (reconnect) {
+					// TODO Monitoring
+					log.log(Level.INFO, "Re-connected to server {0}", serverUri);
+					resubscribe(client);
+				}
+			}
+
+			@Override
+			public void authPacketArrived(int reasonCode, MqttProperties properties) {
+			}
+		});
+		return client;
+	}
+
+	@Override
+	public boolean supportsSocketFactory() {
+		return true;
+	}
+
+	@Override
+	public synchronized void setSocketFactory(SocketFactory socketFactory) throws TransportException {
+		// without certificates the default factory is used again
+		if (socketFactory == this.socketFactory)
+			return;
+		this.socketFactory = socketFactory;
+		if (client == null)
+			return;
+		// move the subscriptions to a client using the new settings
+		MqttAsyncClient previous = client;
+		client = null;
+		close(previous);
+		try {
+			MqttAsyncClient client = client();
+			for (String filter : subscriptions.keySet())
+				subscribe(client, filter, null).waitForCompletion(timeout);
+		} catch (MqttException e) {
+			throw new TransportException("Could not update MQTT certificate handling: " + e.getMessage(), e);
+		} catch (TransportException e) {
+			throw new TransportException("Could not update MQTT certificate handling: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	protected void send(Marshaller<T> marshaller, T message, String name, String path, Map<String, String> properties) throws TransportException {
+		send(path, marshaller, message);
+	}
+
+	@Override
+	protected void send(Marshaller<T> marshaller, T message) throws TransportException {
+		send(topic, marshaller, message);
+	}
+
+	private void send(String topic, Marshaller<T> marshaller, T message) throws TransportException {
+		IMqttToken token = publish(topic, marshaller, message, null);
+		try {
+			token.waitForCompletion(timeout);
+		} catch (MqttException e) {
+			if (e.getReasonCode() == MqttClientException.REASON_CODE_CLIENT_TIMEOUT)
+				// the message is queued and still delivered, sending it again
+				// would duplicate it
+				throw new TransportException("MQTT message was not acknowledged within " + timeout + " ms, delivery continues", e);
+			throw error(e);
+		}
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, SendCallback callback) {
+		String topic = path != null ? path : this.topic;
+		RawPayload payload = RawPayload.of(message);
+		try {
+			if (payload != null)
+				publish(topic, payload.<T> getMarshaller(), null, callback);
+			else
+				publish(topic, getMarshaller(), (T) message, callback);
+		} catch (TransportException e) {
+			callback.failed(e);
+		}
+	}
+
+	/**
+	 * Publish the message, QoS 1 and 2 messages wait for a free slot of the
+	 * in flight window. The callback completes when the broker acknowledged
+	 * the message, QoS 0 messages complete as soon as they were handed to the
+	 * client.
+	 *
+	 * @return the delivery token
+	 */
+	private IMqttToken publish(String topic, Marshaller<T> marshaller, T message, final SendCallback callback) throws TransportException {
+		MqttAsyncClient client = client();
+		byte[] bytes;
+		try (MessageBuffer buffer = MessageBuffer.get()) {
+			marshaller.marshal(message, buffer);
+			// the client keeps a reference to the payload, hand over a copy
+			bytes = buffer.toByteArray();
+		}
+		MqttMessage mqttMessage = new MqttMessage(bytes);
+		mqttMessage.setQos(qos);
+		if (messageExpiry > 0) {
+			MqttProperties properties = new MqttProperties();
+			properties.setMessageExpiryInterval(Long.valueOf(messageExpiry));
+			mqttMessage.setProperties(properties);
+		}
+		topic = removeLeadingSlash(topic);
+
+		try {
+			if (qos == 0) {
+				IMqttToken token = client.publish(topic, mqttMessage, null, null);
+				if (callback != null)
+					callback.completed();
+				return token;
+			}
+
+			final Semaphore inFlight = this.inFlight;
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new TransportException("MQTT transport was interrupted", e);
+			}
+			try {
+				return client.publish(topic, mqttMessage, null, new MqttActionListener() {
+					@Override
+					public void onSuccess(IMqttToken token) {
+						inFlight.release();
+						if (callback != null)
+							callback.completed();
+					}
+
+					@Override
+					public void onFailure(IMqttToken token, Throwable exception) {
+						inFlight.release();
+						if (callback != null)
+							callback.failed(exception instanceof MqttException ? error((MqttException) exception) : new TransportException(
+									"Failed to send MQTT message: " + exception, exception));
+					}
+				});
+			} catch (MqttException | RuntimeException e) {
+				inFlight.release();
+				throw e;
+			}
+		} catch (MqttException e) {
+			throw error(e);
+		}
+	}
+
+	private TransportException error(MqttException e) {
+		switch (e.getReasonCode()) {
+		case MqttClientException.REASON_CODE_CLIENT_NOT_CONNECTED:
+		case MqttClientException.REASON_CODE_CONNECTION_LOST:
+		case MqttClientException.REASON_CODE_CLIENT_TIMEOUT:
+		case MqttClientException.REASON_CODE_MAX_INFLIGHT:
+			return new TransportConnectionException("Failed to send MQTT message: " + e.getMessage(), e);
+		default:
+			return new TransportException("Failed to send MQTT message: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	protected synchronized void subscribe(String topic, final StreamCallback callback) throws TransportException {
+		if (topic == null)
+			throw new TransportException("Either topic or topic extension must be provided for MQTT");
+
+		final String originalPath = topic;
+		IMqttMessageListener listener = new IMqttMessageListener() {
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				// delivered by the inbound workers, the callback thread of the
+				// client only queues the message
+				if (orderByTopic && callback instanceof KeyedStreamCallback)
+					((KeyedStreamCallback) callback).arrived(originalPath, topic, new ByteArrayInputStream(message.getPayload()));
+				else
+					callback.arrived(originalPath, new ByteArrayInputStream(message.getPayload()));
+			}
+		};
+		String filter = filter(topic);
+		MqttAsyncClient client = client();
+		// registered first to pass on retained messages
+		subscriptions.put(filter, listener);
+		try {
+			subscribe(client, filter, null).waitForCompletion(timeout);
+		} catch (MqttException e) {
+			subscriptions.remove(filter);
+			identifiers.remove(filter);
+			throw new TransportException("Failed to subscribe to MQTT topic: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Subscribe a topic filter with its subscription identifier, if the broker
+	 * supports them. The identifier of a filter is kept to subscribe again
+	 * after a reconnect.
+	 */
+	private IMqttToken subscribe(MqttAsyncClient client, String filter, MqttActionListener action) throws MqttException {
+		MqttProperties properties = new MqttProperties();
+		if (subscriptionIdentifiers) {
+			Integer identifier = identifiers.get(filter);
+			if (identifier == null)
+				identifiers.put(filter, identifier = Integer.valueOf(++subscriptionIdentifier));
+			properties.setSubscriptionIdentifier(identifier);
+		}
+		return client.subscribe(new MqttSubscription[] { new MqttSubscription(filter, 1) }, null, action, properties);
+	}
+
+	/**
+	 * Pass a message to the listeners of the subscriptions it was sent for.
+	 * Messages are matched by their subscription identifiers, so copies of
+	 * shared subscriptions reach their own listener only. Without identifiers
+	 * every listener with a matching filter gets the message.
+	 */
+	private void deliver(String topic, MqttMessage message) throws Exception {
+		List<Integer> matched = message.getProperties() != null ? message.getProperties().getSubscriptionIdentifiers() : null;
+		for (Entry<String, IMqttMessageListener> s : subscriptions.entrySet()) {
+			String filter = s.getKey();
+			if (matched != null && !matched.isEmpty() ? matched.contains(identifiers.get(filter)) : MqttTopicValidator.isMatched(
+					filter.startsWith("$share/") ? filter.substring(filter.indexOf('/', 7) + 1) : filter, topic))
+				s.getValue().messageArrived(topic, message);
+		}
+	}
+
+	private synchronized void resubscribe(MqttAsyncClient client) {
+		// the broker dropped the subscriptions of the clean session
+		for (final Entry<String, IMqttMessageListener> s : subscriptions.entrySet()) {
+			try {
+				subscribe(client, s.getKey(), new MqttActionListener() {
+					@Override
+					public void onSuccess(IMqttToken token) {
+					}
+
+					@Override
+					public void onFailure(IMqttToken token, Throwable exception) {
+						log.log(Level.SEVERE, "Re-Subscribe on topic " + s.getKey() + " failed: " + exception.getMessage(), exception);
+					}
+				});
+			} catch (MqttException e) {
+				log.log(Level.SEVERE, "Re-Subscribe on topic " + s.getKey() + " failed: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	@Override
+	protected synchronized void unsubscribe(String path) throws TransportException {
+		String topic = filter(path);
+		IMqttMessageListener listener = subscriptions.remove(topic);
+		identifiers.remove(topic);
+		// the broker drops the subscriptions of clean sessions when the
+		// connection is lost
+		if (listener == null || client == null || !client.isConnected())
+			return;
+		try {
+			client.unsubscribe(topic).waitForCompletion(timeout);
+		} catch (MqttException e) {
+			throw new TransportException("Failed to unsubscribe from MQTT topic: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void dispose() {
+		super.dispose();
+		MqttAsyncClient client;
+		synchronized (this) {
+			client = this.client;
+			this.client = null;
+			disposed = true;
+			subscriptions.clear();
+			identifiers.clear();
+		}
+		if (client != null)
+			close(client);
+	}
+
+	private void close(MqttAsyncClient client) {
+		try {
+			try {
+				if (client.isConnected()) {
+					client.setCallback(null);
+					client.disconnect().waitForCompletion(timeout);
+				}
+			} finally {
+				client.close();
+			}
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Failed to close MQTT connection: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the topic filter to subscribe, shared if a group is configured
+	 */
+	private String filter(String topic) {
+		topic = removeLeadingSlash(topic);
+		if (sharedGroup != null && !topic.startsWith("$share/"))
+			return "$share/" + sharedGroup + "/" + topic;
+		return topic;
+	}
+
+	private String removeLeadingSlash(String topic) {
+		if (topic != null && topic.startsWith("/")) {
+			topic = topic.substring(1);
+		}
+		return topic;
+	}
+}
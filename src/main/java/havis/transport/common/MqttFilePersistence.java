@@ -0,0 +1,418 @@
+package havis.transport.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * MQTT persistence writing all changes to one append-only log per client,
+ * which is mapped into memory. Each record consists of its length, a CRC32
+ * checksum and the operation, i.e. put or remove, with the key and data. The
+ * log is read on open, reading stops at the first incomplete record. When the
+ * log is full and less than half of it is in use, the remaining entries are
+ * written to a new log which replaces the old one, otherwise the log grows.
+ *
+ * Records are written to the page cache of the system and survive a crash of
+ * the process. If synchronous, each record is forced to the storage device
+ * and survives a power loss.
+ */
+class MqttFilePersistence implements MqttClientPersistence {
+
+	private final static Logger log = Logger.getLogger(MqttFilePersistence.class.getName());
+
+	private final static int MAGIC = 0x48564D51;
+	private final static byte PUT = 1;
+	private final static byte REMOVE = 2;
+	// length and checksum
+	private final static int RECORD_HEADER_SIZE = 8;
+	private final static int INITIAL_CAPACITY = 1024 * 1024;
+
+	private final File folder;
+	private final boolean sync;
+	private final CRC32 crc = new CRC32();
+
+	private File file;
+	private FileChannel lockChannel;
+	private FileLock lock;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Persisted data, the implementation of the client is not exported
+	 */
+	private static class Data implements MqttPersistable {
+		private final String key;
+		private final byte[] header;
+		private final byte[] payload;
+
+		private Data(String key, byte[] header, byte[] payload) {
+			this.key = key;
+			this.header = header;
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] getHeaderBytes() {
+			return header;
+		}
+
+		@Override
+		public int getHeaderLength() {
+			return header.length;
+		}
+
+		@Override
+		public int getHeaderOffset() {
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return payload.length;
+		}
+
+		@Override
+		public int getPayloadOffset() {
+			return 0;
+		}
+	}
+
+	private final Map<String, Data> entries = new LinkedHashMap<>();
+	// record sizes of the entries
+	private final Map<String, Integer> sizes = new LinkedHashMap<>();
+	// bytes of the magic number and the records of the entries
+	private long used;
+
+	/**
+	 * Creates a new file persistence
+	 *
+	 * @param folder
+	 *            the folder of the logs
+	 * @param sync
+	 *            true to force each record to the storage device
+	 */
+	MqttFilePersistence(File folder, boolean sync) {
+		this.folder = folder;
+		this.sync = sync;
+	}
+
+	@Override
+	public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new MqttPersistenceException(new IOException("Failed to create folder '" + folder + "'"));
+		String name = name(clientId + "-" + serverURI);
+		file = new File(folder, name + ".log");
+		try {
+			// the log is replaced on compaction, so lock a separate file
+			lockChannel = FileChannel.open(new File(folder, name + ".lck").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				lock = lockChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null) {
+				lockChannel.close();
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+			}
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_CAPACITY));
+			read();
+		} catch (IOException e) {
+			close(lockChannel);
+			close(channel);
+			channel = null;
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	private static String name(String value) {
+		StringBuilder name = new StringBuilder();
+		for (char c : value.toCharArray())
+			if (Character.isLetterOrDigit(c) || c == '-' || c == '_')
+				name.append(c);
+		return name.toString();
+	}
+
+	private void read() {
+		entries.clear();
+		sizes.clear();
+		used = 4;
+		if (buffer.getInt(0) != MAGIC) {
+			// new or unreadable log
+			buffer.putInt(0, MAGIC);
+			buffer.position(4);
+			terminate();
+			return;
+		}
+		buffer.position(4);
+		try {
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining() || checksum != checksum(start + RECORD_HEADER_SIZE, length)) {
+					buffer.position(start);
+					break;
+				}
+				int end = start + RECORD_HEADER_SIZE + length;
+				byte operation = buffer.get();
+				byte[] k = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(k);
+				String key = new String(k, StandardCharsets.UTF_8);
+				switch (operation) {
+				case PUT:
+					byte[] header = new byte[buffer.getInt()];
+					buffer.get(header);
+					byte[] payload = new byte[end - buffer.position()];
+					buffer.get(payload);
+					entries.put(key, new Data(key, header, payload));
+					Integer previous = sizes.put(key, Integer.valueOf(end - start));
+					if (previous != null)
+						used -= previous.intValue();
+					used += end - start;
+					break;
+				case REMOVE:
+					entries.remove(key);
+					previous = sizes.remove(key);
+					if (previous != null)
+						used -= previous.intValue();
+					break;
+				default:
+					log.log(Level.WARNING, "Unknown operation {0} in MQTT persistence {1}", new Object[] { Byte.valueOf(operation), file });
+				}
+				buffer.position(end);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			log.log(Level.WARNING, "Stopped reading corrupt MQTT persistence " + file, e);
+		}
+		// continue after the last valid record
+		terminate();
+	}
+
+	private int checksum(int offset, int length) {
+		ByteBuffer data = buffer.duplicate();
+		data.limit(offset + length);
+		data.position(offset);
+		crc.reset();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public synchronized void close() throws MqttPersistenceException {
+		if (channel == null)
+			return;
+		try {
+			buffer.force();
+			channel.close();
+			lock.release();
+			lockChannel.close();
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		} finally {
+			channel = null;
+			buffer = null;
+			entries.clear();
+			sizes.clear();
+		}
+	}
+
+	private static void close(FileChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	@Override
+	public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		checkOpen();
+		byte[] header = copy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength());
+		byte[] payload = copy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+		Data data = new Data(key, header, payload);
+		int size = size(data);
+		reserve(size);
+		write(data);
+		commit();
+		Integer previous = sizes.put(key, Integer.valueOf(size));
+		if (previous != null)
+			used -= previous.intValue();
+		used += size;
+		entries.put(key, data);
+	}
+
+	private static byte[] copy(byte[] data, int offset, int length) {
+		if (data == null)
+			return new byte[0];
+		byte[] result = new byte[length];
+		System.arraycopy(data, offset, result, 0, length);
+		return result;
+	}
+
+	private static int size(Data data) {
+		return RECORD_HEADER_SIZE + 1 + 2 + data.key.getBytes(StandardCharsets.UTF_8).length + 4 + data.header.length + data.payload.length;
+	}
+
+	@Override
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkOpen();
+		return entries.get(key);
+	}
+
+	@Override
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkOpen();
+		Integer previous = sizes.remove(key);
+		if (previous == null)
+			return;
+		entries.remove(key);
+		used -= previous.intValue();
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		reserve(RECORD_HEADER_SIZE + 1 + 2 + k.length);
+		int start = buffer.position();
+		buffer.position(start + RECORD_HEADER_SIZE);
+		buffer.put(REMOVE).putShort((short) k.length).put(k);
+		seal(start);
+		commit();
+	}
+
+	@Override
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkOpen();
+		return Collections.enumeration(new ArrayList<>(entries.keySet()));
+	}
+
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		checkOpen();
+		entries.clear();
+		sizes.clear();
+		used = 4;
+		compact();
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkOpen();
+		return entries.containsKey(key);
+	}
+
+	private void checkOpen() throws MqttPersistenceException {
+		if (channel == null)
+			throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_CLOSED);
+	}
+
+	private void write(Data data) {
+		byte[] k = data.key.getBytes(StandardCharsets.UTF_8);
+		int start = buffer.position();
+		buffer.position(start + RECORD_HEADER_SIZE);
+		buffer.put(PUT).putShort((short) k.length).put(k).putInt(data.header.length).put(data.header).put(data.payload);
+		seal(start);
+	}
+
+	/**
+	 * Write checksum and length of the record after its content, so the
+	 * record is only valid if completely written
+	 */
+	private void seal(int start) {
+		int length = buffer.position() - start - RECORD_HEADER_SIZE;
+		buffer.putInt(start + 4, checksum(start + RECORD_HEADER_SIZE, length));
+		buffer.putInt(start, length);
+	}
+
+	/**
+	 * Mark the end of the log, the space behind may contain old records
+	 */
+	private void terminate() {
+		if (buffer.remaining() >= 4)
+			buffer.putInt(buffer.position(), 0);
+	}
+
+	private void commit() {
+		terminate();
+		if (sync)
+			buffer.force();
+	}
+
+	/**
+	 * Ensure the log has space for the record, compacts or grows the log
+	 */
+	private void reserve(int size) throws MqttPersistenceException {
+		if (buffer.remaining() >= size)
+			return;
+		if (used + size <= buffer.capacity() / 2) {
+			compact();
+			if (buffer.remaining() >= size)
+				return;
+		}
+		long capacity = buffer.capacity();
+		while (capacity < buffer.position() + size)
+			capacity *= 2;
+		if (capacity > Integer.MAX_VALUE)
+			throw new MqttPersistenceException(new IOException("MQTT persistence " + file + " exceeds maximum size"));
+		try {
+			int position = buffer.position();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			buffer.position(position);
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+	}
+
+	/**
+	 * Write the entries to a new log which replaces the current one
+	 */
+	private void compact() throws MqttPersistenceException {
+		File target = new File(file.getPath() + ".tmp");
+		FileChannel channel = null;
+		MappedByteBuffer current = buffer;
+		try {
+			channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, current.capacity()));
+			buffer.putInt(MAGIC);
+			for (Data data : entries.values())
+				write(data);
+			terminate();
+			buffer.force();
+			Files.move(target.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			// the open channel refers to the new log after the move
+			close(this.channel);
+			this.channel = channel;
+		} catch (IOException e) {
+			buffer = current;
+			close(channel);
+			target.delete();
+			throw new MqttPersistenceException(e);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package havis.transport.common;
+
+import havis.transport.TransportConnectionException;
+import havis.transport.TransportException;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.net.SocketFactory;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Broker session shared by all MQTT transporters connecting to the same
+ * broker with the same credentials and TLS settings. The session is reference
+ * counted, the connection is opened on first use and closed with the last
+ * reference. Sessions with memory persistence are shared regardless of the
+ * client ID, the client ID of the transporter opening the session is used for
+ * the whole session. Sessions with file persistence are only shared by
+ * transporters with the same client ID, they are not cleaned by the broker and
+ * unacknowledged messages are delivered again after a restart. Each
+ * topic is subscribed once at the broker, received messages are passed to all
+ * listeners of the topic. Each shared subscription, i.e. $share/group/topic, is
+ * subscribed by a dedicated session with its own connection, since received
+ * messages don't tell which subscription they were delivered for.
+ */
+class MqttSession {
+
+	private final static Logger log = Logger.getLogger(MqttSession.class.getName());
+
+	// transporters limit their own window, the session is only limited by
+	// the packet identifiers
+	private final static int MAX_IN_FLIGHT = 65535;
+
+	private final static String SHARED_PREFIX = "$share/";
+
+	// longest client ID servers must accept according to MQTT 3.1.1
+	private final static int MAX_CLIENT_ID_LENGTH = 23;
+
+	private final static Map<Key, MqttSession> sessions = new HashMap<>();
+
+	/**
+	 * Key of a session
+	 */
+	private static class Key {
+		private final String serverUri;
+		private final String clientId;
+		private final String userName;
+		private final String password;
+		private final SocketFactory socketFactory;
+		private final Persistence persistence;
+		private final String shared;
+
+		private Key(String serverUri, String clientId, String userName, String password, SocketFactory socketFactory, Persistence persistence,
+				String shared) {
+			this.serverUri = serverUri;
+			this.clientId = clientId;
+			this.userName = userName;
+			this.password = password;
+			this.socketFactory = socketFactory;
+			this.persistence = persistence;
+			this.shared = shared;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(serverUri, clientId, userName, password, socketFactory, persistence, shared);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return serverUri.equals(other.serverUri) && Objects.equals(clientId, other.clientId) && Objects.equals(userName, other.userName)
+					&& Objects.equals(password, other.password) && socketFactory == other.socketFactory && persistence == other.persistence
+					&& Objects.equals(shared, other.shared);
+		}
+	}
+
+	/**
+	 * Persistence of messages in flight
+	 */
+	enum Persistence {
+		/**
+		 * Messages are kept in memory
+		 */
+		MEMORY,
+		/**
+		 * Messages are written to a log file
+		 */
+		FILE,
+		/**
+		 * Messages are written to a log file, which is forced to the storage
+		 * device on each change
+		 */
+		FILE_SYNC
+	}
+
+	private final Key key;
+	private final int timeout;
+	private final MqttAsyncClient client;
+	private final MqttConnectOptions connectOptions = new MqttConnectOptions();
+	private final Map<String, List<IMqttMessageListener>> subscriptions = new ConcurrentHashMap<>();
+	private final Map<String, MqttSession> sharedSessions = new HashMap<>();
+	private int references;
+	private volatile boolean isConnectionLost = false;
+
+	private MqttSession(Key key, String clientId, int timeout) throws MqttException {
+		this.key = key;
+		this.timeout = timeout;
+		if (key.userName != null)
+			connectOptions.setUserName(key.userName);
+		if (key.password != null)
+			connectOptions.setPassword(key.password.toCharArray());
+		if (key.socketFactory != null)
+			connectOptions.setSocketFactory(key.socketFactory);
+		connectOptions.setConnectionTimeout(Math.max((int) Math.round(timeout / 1000.0), 1));
+		connectOptions.setAutomaticReconnect(true);
+		connectOptions.setMaxInflight(MAX_IN_FLIGHT);
+		// the broker keeps the session of persistent clients
+		connectOptions.setCleanSession(key.persistence == Persistence.MEMORY);
+
+		client = new MqttAsyncClient(key.serverUri, clientId, key.persistence == Persistence.MEMORY ? new MemoryPersistence()
+				: new MqttFilePersistence(new File(Environment.MQTT_PERSISTENCE_FOLDER), key.persistence == Persistence.FILE_SYNC));
+		client.setCallback(new MqttCallbackExtended() {
+
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				// the client only passes messages of shared subscriptions, all
+				// messages of a dedicated session belong to its subscription
+				if (key.shared == null)
+					return;
+				for (List<IMqttMessageListener> listeners : subscriptions.values())
+					for (IMqttMessageListener listener : listeners)
+						listener.messageArrived(topic, message);
+			}
+
+			@Override
+			public void deliveryComplete(IMqttDeliveryToken token) {
+			}
+
+			@Override
+			public void connectionLost(Throwable cause) {
+				// TODO Monitoring
+				isConnectionLost = true;
+				log.log(Level.WARNING, "Connection lost to " + client.getCurrentServerURI() + ": " + (cause != null ? cause.toString() : "Unknown error"), cause);
+			}
+
+			@Override
+			public void connectComplete(boolean reconnect, String serverUri) {
+				isConnectionLost = false;
+				if (reconnect) {
+					// TODO Monitoring
+					log.log(Level.INFO, "Re-connected to server {0}", serverUri);
+					resubscribe();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Acquire a reference to the session for the specified broker
+	 *
+	 * @param serverUri
+	 *            the URI of the broker, i.e. tcp://host:port or ssl://host:port
+	 * @param clientId
+	 *            the client ID, sessions with file persistence are opened per
+	 *            client ID, others use the client ID of the first transporter
+	 * @param userName
+	 *            the user name or null
+	 * @param password
+	 *            the password or null
+	 * @param socketFactory
+	 *            the socket factory or null
+	 * @param persistence
+	 *            the persistence of messages in flight
+	 * @param timeout
+	 *            the timeout in milliseconds used if the session is opened
+	 * @return the session
+	 * @throws MqttException
+	 *             if the client could not be created
+	 */
+	static MqttSession acquire(String serverUri, String clientId, String userName, String password, SocketFactory socketFactory,
+			Persistence persistence, int timeout) throws MqttException {
+		// the broker and the log file keep the state of persistent sessions
+		// per client ID
+		return acquire(new Key(serverUri, persistence == Persistence.MEMORY ? null : clientId, userName, password, socketFactory, persistence, null),
+				clientId, timeout);
+	}
+
+	private static MqttSession acquire(Key key, String clientId, int timeout) throws MqttException {
+		synchronized (sessions) {
+			MqttSession session = sessions.get(key);
+			if (session == null) {
+				session = new MqttSession(key, clientId, timeout);
+				sessions.put(key, session);
+			}
+			session.references++;
+			return session;
+		}
+	}
+
+	/**
+	 * Release a reference to the session, the session is closed with the last
+	 * reference
+	 */
+	void release() {
+		synchronized (sessions) {
+			if (--references > 0)
+				return;
+			sessions.remove(key);
+		}
+		synchronized (this) {
+			for (MqttSession session : sharedSessions.values())
+				session.release();
+			sharedSessions.clear();
+		}
+		try {
+			try {
+				if (client.isConnected()) {
+					client.setCallback(null);
+					client.disconnect().waitForCompletion(timeout);
+				}
+			} finally {
+				client.close();
+			}
+		} catch (NullPointerException e) {
+			// ignore any exceptions (sometimes an NPE is thrown by the MQTT
+			// client)
+			log.log(Level.FINE, "Failed to close MQTT connection", e);
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Failed to close MQTT connection: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Connect to the broker if not connected
+	 *
+	 * @throws TransportException
+	 *             if the connection is recovering or could not be established
+	 * @throws MqttException
+	 *             if connecting failed otherwise
+	 */
+	void connect() throws TransportException, MqttException {
+		if (isConnectionLost) {
+			throw new TransportConnectionException("Connection is currently recovering");
+		}
+		if (!client.isConnected()) {
+			synchronized (this) {
+				if (!client.isConnected()) {
+					try {
+						client.connect(connectOptions).waitForCompletion(timeout);
+					} catch (MqttException e) {
+						switch (e.getReasonCode()) {
+						case MqttException.REASON_CODE_SERVER_CONNECT_ERROR:
+						case MqttException.REASON_CODE_CLIENT_TIMEOUT:
+						case MqttException.REASON_CODE_CONNECT_IN_PROGRESS:
+							throw new TransportConnectionException("Failed to connect to MQTT URI '" + key.serverUri + "': " + e.getMessage(), e);
+						default:
+							throw e;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publish a message
+	 *
+	 * @param topic
+	 *            the topic
+	 * @param message
+	 *            the message
+	 * @param listener
+	 *            the listener notified on delivery or null
+	 * @return the delivery token
+	 * @throws MqttException
+	 *             if the message could not be queued
+	 */
+	IMqttDeliveryToken publish(String topic, MqttMessage message, IMqttActionListener listener) throws MqttException {
+		return client.publish(topic, message, null, listener);
+	}
+
+	/**
+	 * Add a listener for a topic, the topic is subscribed at the broker with
+	 * the first listener
+	 *
+	 * @param topic
+	 *            the topic
+	 * @param listener
+	 *            the listener
+	 * @param timeout
+	 *            the time in milliseconds to wait for the subscription
+	 * @throws TransportException
+	 *             if the connection is recovering or could not be established
+	 * @throws MqttException
+	 *             if subscribing failed
+	 */
+	synchronized void subscribe(String topic, IMqttMessageListener listener, long timeout) throws TransportException, MqttException {
+		if (key.shared == null && shared(topic) != null) {
+			MqttSession session = sharedSessions.get(topic);
+			if (session == null) {
+				session = acquire(new Key(key.serverUri, key.clientId, key.userName, key.password, key.socketFactory, key.persistence, topic),
+						sharedClientId(client.getClientId(), topic), this.timeout);
+				try {
+					session.subscribe(topic, listener, timeout);
+				} catch (TransportException | MqttException | RuntimeException e) {
+					session.release();
+					throw e;
+				}
+				sharedSessions.put(topic, session);
+			} else {
+				session.subscribe(topic, listener, timeout);
+			}
+			return;
+		}
+		connect();
+		List<IMqttMessageListener> listeners = subscriptions.get(topic);
+		if (listeners == null) {
+			listeners = new CopyOnWriteArrayList<>();
+			subscribe(topic, listeners, null).waitForCompletion(timeout);
+			subscriptions.put(topic, listeners);
+		}
+		listeners.add(listener);
+	}
+
+	private IMqttToken subscribe(String topic, final List<IMqttMessageListener> listeners, IMqttActionListener callback) throws MqttException {
+		if (shared(topic) != null)
+			// the client does not match shared subscriptions against topics
+			return client.subscribe(topic, 1, null, callback);
+		return client.subscribe(topic, 1, null, callback, new IMqttMessageListener() {
+			@Override
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				for (IMqttMessageListener listener : listeners)
+					listener.messageArrived(topic, message);
+			}
+		});
+	}
+
+	/**
+	 * Remove a listener of a topic, the topic is unsubscribed at the broker
+	 * with the last listener
+	 *
+	 * @param topic
+	 *            the topic
+	 * @param listener
+	 *            the listener
+	 * @param timeout
+	 *            the time in milliseconds to wait for the unsubscription
+	 * @throws TransportException
+	 *             if the connection is recovering or could not be established
+	 * @throws MqttException
+	 *             if unsubscribing failed
+	 */
+	synchronized void unsubscribe(String topic, IMqttMessageListener listener, long timeout) throws TransportException, MqttException {
+		MqttSession session = sharedSessions.get(topic);
+		if (session != null) {
+			try {
+				session.unsubscribe(topic, listener, timeout);
+			} finally {
+				if (session.subscriptions.isEmpty()) {
+					sharedSessions.remove(topic);
+					session.release();
+				}
+			}
+			return;
+		}
+		List<IMqttMessageListener> listeners = subscriptions.get(topic);
+		if (listeners == null || !listeners.remove(listener) || !listeners.isEmpty())
+			return;
+		subscriptions.remove(topic);
+		// the broker drops the subscriptions of clean sessions when the
+		// connection is lost
+		if (client.isConnected() || !connectOptions.isCleanSession()) {
+			connect();
+			client.unsubscribe(topic).waitForCompletion(timeout);
+		}
+	}
+
+	/**
+	 * @return the topic filter of a shared subscription, null if the
+	 *         subscription is not shared
+	 */
+	/**
+	 * Derive the client ID of the dedicated session of a shared subscription.
+	 * The client ID of the session is followed by a hash of both, so the ID
+	 * stays the same across restarts. The suffix only consists of the
+	 * characters MQTT 3.1.1 servers must accept, the prefix is shortened to
+	 * keep compliant IDs within 23 bytes.
+	 *
+	 * @param clientId
+	 *            the client ID of the session
+	 * @param topic
+	 *            the shared subscription
+	 * @return the client ID
+	 */
+	static String sharedClientId(String clientId, String topic) {
+		CRC32 crc = new CRC32();
+		crc.update((clientId + '\u0000' + topic).getBytes(StandardCharsets.UTF_8));
+		String hash = Long.toString(crc.getValue(), Character.MAX_RADIX);
+		// pad to the maximum length of seven digits
+		hash = "0000000".substring(hash.length()) + hash;
+		if (clientId.length() + hash.length() > MAX_CLIENT_ID_LENGTH)
+			clientId = clientId.substring(0, Math.max(0, MAX_CLIENT_ID_LENGTH - hash.length()));
+		return clientId + hash;
+	}
+
+	private static String shared(String topic) {
+		if (!topic.startsWith(SHARED_PREFIX))
+			return null;
+		int index = topic.indexOf('/', SHARED_PREFIX.length());
+		return index > -1 ? topic.substring(index + 1) : null;
+	}
+
+	private synchronized void resubscribe() {
+		for (final Entry<String, List<IMqttMessageListener>> s : new ArrayList<>(subscriptions.entrySet())) {
+			try {
+				subscribe(s.getKey(), s.getValue(), new IMqttActionListener() {
+					@Override
+					public void onSuccess(IMqttToken token) {
+					}
+
+					@Override
+					public void onFailure(IMqttToken token, Throwable exception) {
+						log.log(Level.SEVERE, "Re-Subscribe on topic " + s.getKey() + " failed: " + exception.getMessage(), exception);
+					}
+				});
+			} catch (MqttException e) {
+				log.log(Level.SEVERE, "Re-Subscribe on topic " + s.getKey() + " failed: " + e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -1,24 +1,23 @@
 package havis.transport.common;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.net.SocketFactory;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
-import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import havis.transport.Marshaller;
 import havis.transport.Messenger;
@@ -28,15 +27,49 @@ import havis.transport.Transporter;
 import havis.transport.ValidationException;
 
 /**
- * MQTT transporter
+ * MQTT transporter, transporters connecting to the same broker share one
+ * {@link MqttSession}
  * 
  * @param <T>
  *            type of messages
  */
-public class MqttTransporter<T> extends StreamTransporter<T> {
+public class MqttTransporter<T> extends StreamTransporter<T> implements AsyncTransporter {
 
 	private final static Logger log = Logger.getLogger(MqttTransporter.class.getName());
 
+	/**
+	 * Maximum number of QoS 1 and 2 messages waiting for acknowledgement by
+	 * the broker
+	 */
+	public final static String MAX_IN_FLIGHT_PROPERTY = Transporter.PREFIX + "MQTT.MaxInFlight";
+
+	/**
+	 * Persistence of messages in flight, either "memory" or "file". With
+	 * memory persistence transporters connecting to the same broker share the
+	 * client ID of the first one, with file persistence each client ID has its
+	 * own session.
+	 */
+	public final static String PERSISTENCE_PROPERTY = Transporter.PREFIX + "MQTT.Persistence";
+
+	/**
+	 * Whether each change of the file persistence is forced to the storage
+	 * device
+	 */
+	public final static String PERSISTENCE_SYNC_PROPERTY = Transporter.PREFIX + "MQTT.Persistence.Sync";
+
+	/**
+	 * Group of a shared subscription, the messages of the subscribed topics
+	 * are split between all subscribers of the group. Each shared subscription
+	 * uses its own connection with the client ID extended by the subscription.
+	 */
+	public final static String SHARED_GROUP_PROPERTY = Transporter.PREFIX + "MQTT.SharedGroup";
+
+	/**
+	 * Whether received messages are ordered by their topic instead of the
+	 * subscribed topic filter, applies if inbound messages are ordered
+	 */
+	public final static String ORDER_BY_TOPIC_PROPERTY = Transporter.PREFIX + "MQTT.OrderByTopic";
+
 	private final static String CLIENT_ID_PARAMETER = "clientid";
 	private final static String QOS_PARAMETER = "qos";
 
@@ -47,12 +80,21 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 
 	private String topic;
 	private Integer qos;
-	private boolean isConnectionLost = false;
-
-	private MqttClient client = null;
-	private MqttConnectOptions connectOptions = new MqttConnectOptions();
-
-	private Map<String, StreamCallback> subscriptions = new ConcurrentHashMap<String, StreamCallback>();
+	private int timeout = DEFAULT_TIMEOUT;
+	private Semaphore inFlight;
+
+	private String serverUri;
+	private String clientId;
+	private String userName;
+	private String password;
+	private SocketFactory socketFactory;
+	private MqttSession.Persistence persistence = MqttSession.Persistence.MEMORY;
+	private String sharedGroup;
+	private boolean orderByTopic;
+	private MqttSession session = null;
+	private boolean disposed;
+
+	private Map<String, IMqttMessageListener> subscriptions = new ConcurrentHashMap<String, IMqttMessageListener>();
 
 	@Override
 	protected String getDefaultMimeType() {
@@ -76,13 +118,15 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 		if (userInfo != null && userInfo.length() > 0) {
 			String[] auth = userInfo.split(":");
 			if (auth.length > 0) {
-				connectOptions.setUserName(auth[0]);
+				userName = auth[0];
 				if (auth.length > 1) {
-					connectOptions.setPassword(auth[1].toCharArray());
+					password = auth[1];
 				}
 			}
 		}
-		int timeout = DEFAULT_TIMEOUT;
+		int maxInFlight = MqttConnectOptions.MAX_INFLIGHT_DEFAULT;
+		String persistence = "memory";
+		boolean sync = false;
 		if (properties != null) {
 			for (Entry<String, String> entry : properties.entrySet()) {
 				String key = entry.getKey();
@@ -97,6 +141,30 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 							throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'", e);
 						}
 						break;
+					case MAX_IN_FLIGHT_PROPERTY:
+						try {
+							maxInFlight = Integer.parseInt(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid max in flight value '" + entry.getValue() + "'", e);
+						}
+						if (maxInFlight < 1)
+							throw new ValidationException("Value '" + entry.getValue() + "' for max in flight must be greater than zero");
+						break;
+					case PERSISTENCE_PROPERTY:
+						persistence = entry.getValue() != null ? entry.getValue().trim().toLowerCase() : null;
+						break;
+					case PERSISTENCE_SYNC_PROPERTY:
+						sync = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
+					case SHARED_GROUP_PROPERTY:
+						sharedGroup = entry.getValue();
+						if (sharedGroup == null || sharedGroup.isEmpty() || sharedGroup.contains("/") || sharedGroup.contains("#")
+								|| sharedGroup.contains("+"))
+							throw new ValidationException("Invalid MQTT shared group value '" + entry.getValue() + "'");
+						break;
+					case ORDER_BY_TOPIC_PROPERTY:
+						orderByTopic = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
 					default:
 						throw new ValidationException("Unknown property key '" + key + "'");
 					}
@@ -116,8 +184,11 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 			}
 		}
 
-		connectOptions.setConnectionTimeout(Math.max((int) Math.round(timeout / 1000.0), 1));
-		connectOptions.setAutomaticReconnect(true);
+		inFlight = new Semaphore(maxInFlight);
+		if ("file".equals(persistence))
+			this.persistence = sync ? MqttSession.Persistence.FILE_SYNC : MqttSession.Persistence.FILE;
+		else if (!"memory".equals(persistence))
+			throw new ValidationException("Invalid MQTT persistence value '" + persistence + "'");
 
 		if (uri.getHost() == null) {
 			throw new ValidationException("No MQTT host specified");
@@ -125,49 +196,27 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 
 		Logger.getLogger("org.eclipse.paho.client.mqttv3.internal.ClientState").setLevel(Level.OFF);
 
-		String mqttUri = ("mqtts".equals(uri.getScheme()) ? "ssl" : "tcp") + "://" + this.uri.getHost() + ":"
+		serverUri = ("mqtts".equals(uri.getScheme()) ? "ssl" : "tcp") + "://" + this.uri.getHost() + ":"
 				+ (this.uri.getPort() < 0 ? DEFAULT_PORT : this.uri.getPort());
-		try {
-			client = new MqttClient(mqttUri, queryParameters.get(CLIENT_ID_PARAMETER), new MemoryPersistence());
-			client.setCallback(new MqttCallbackExtended() {
-
-				@Override
-				public void messageArrived(String topic, MqttMessage message) throws Exception {
-				}
-
-				@Override
-				public void deliveryComplete(IMqttDeliveryToken token) {
-				}
-
-				@Override
-				public void connectionLost(Throwable cause) {
-					// TODO Monitoring
-					isConnectionLost = true;
-					log.log(Level.WARNING, "Connection lost to " + client.getCurrentServerURI() + ": " + (cause != null ? cause.toString() : "Unknown error"), cause);
-				}
-
-				@Override
-				public void connectComplete(boolean reconnect, String serverUri) {
-					isConnectionLost = false;
-					if (reconnect) {
-						// TODO Monitoring
-						log.log(Level.INFO, "Re-connected to server {0}", serverUri);
-						for (Entry<String, StreamCallback> s : subscriptions.entrySet()) {
-							try {
-								String path = removeLeadingSlash(s.getKey());
-								client.unsubscribe(path);
-								subscribeInternal(s.getKey(), s.getValue());
-							} catch (MqttException e) {
-								log.log(Level.SEVERE, "Re-Subscribe on topic " + s.getKey() + " failed: " + e.getMessage(), e);
-							}
-						}
-					}
-				}
+		clientId = queryParameters.get(CLIENT_ID_PARAMETER);
+		if (clientId == null || clientId.isEmpty() || clientId.length() > 65535)
+			throw new ValidationException("Invalid MQTT client ID '" + clientId + "'");
+	}
 
-			});
-		} catch (MqttException e) {
-			throw new ValidationException("Failed to create MQTT client for URI '" + uri + "'", e);
+	/**
+	 * @return the shared session, acquired on first use
+	 */
+	private synchronized MqttSession session() throws TransportException {
+		if (disposed)
+			throw new TransportException("MQTT client not initialized");
+		if (session == null) {
+			try {
+				session = MqttSession.acquire(serverUri, clientId, userName, password, socketFactory, persistence, timeout);
+			} catch (MqttException e) {
+				throw new TransportException("Failed to create MQTT client for URI '" + uri + "': " + e.getMessage(), e);
+			}
 		}
+		return session;
 	}
 
 	@Override
@@ -176,106 +225,185 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 	}
 
 	@Override
-	public void setSocketFactory(SocketFactory socketFactory) throws TransportException {
+	public synchronized void setSocketFactory(SocketFactory socketFactory) throws TransportException {
+		// without certificates the default factory is used again
+		if (socketFactory == this.socketFactory)
+			return;
+		this.socketFactory = socketFactory;
+		if (session == null)
+			return;
+		// move the subscriptions to the session using the new settings
+		MqttSession previous = session;
+		session = null;
 		try {
-			if (socketFactory != null) {
-				connectOptions.setSocketFactory(socketFactory);
-				if (client.isConnected()) {
-					client.disconnect();
-					client.connect(connectOptions);
-				}
-			}
+			for (Entry<String, IMqttMessageListener> s : subscriptions.entrySet())
+				previous.unsubscribe(s.getKey(), s.getValue(), timeout);
+			for (Entry<String, IMqttMessageListener> s : subscriptions.entrySet())
+				session().subscribe(s.getKey(), s.getValue(), timeout);
 		} catch (Exception e) {
 			throw new TransportException("Could not update MQTT certificate handling: " + e.getMessage(), e);
+		} finally {
+			previous.release();
 		}
 	}
 
 	@Override
-	protected synchronized void send(Marshaller<T> marshaller, T message, String name, String path, Map<String, String> properties) throws TransportException {
+	protected void send(Marshaller<T> marshaller, T message, String name, String path, Map<String, String> properties) throws TransportException {
 		send(path, marshaller, message);
 	}
 
 	@Override
-	protected synchronized void send(Marshaller<T> marshaller, T message) throws TransportException {
+	protected void send(Marshaller<T> marshaller, T message) throws TransportException {
 		send(topic, marshaller, message);
 	}
 
-	private synchronized void send(String topic, Marshaller<T> marshaller, T message) throws TransportException {
-		if(isConnectionLost) {
-			throw new TransportConnectionException("Connection is currently recovering");
+	private void send(String topic, Marshaller<T> marshaller, T message) throws TransportException {
+		IMqttDeliveryToken token;
+		try {
+			token = publish(topic, marshaller, message, null);
+		} catch (MqttException e) {
+			throw error(e);
 		}
-		if (client == null)
-			throw new TransportException("MQTT client not initialized");
+		try {
+			token.waitForCompletion(timeout);
+		} catch (MqttException e) {
+			if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_TIMEOUT)
+				// the message is queued and still delivered, sending it again
+				// would duplicate it
+				throw new TransportException("MQTT message was not acknowledged within " + timeout + " ms, delivery continues", e);
+			throw error(e);
+		}
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, final SendCallback callback) {
+		String topic = path != null ? path : this.topic;
+		RawPayload payload = RawPayload.of(message);
+		try {
+			if (payload != null)
+				publish(topic, payload.<T> getMarshaller(), null, callback);
+			else
+				publish(topic, getMarshaller(), (T) message, callback);
+		} catch (TransportException e) {
+			callback.failed(e);
+		} catch (MqttException e) {
+			callback.failed(error(e));
+		}
+	}
+
+	/**
+	 * Publish the message, QoS 1 and 2 messages wait for a free slot of the
+	 * in flight window. The callback completes when the broker acknowledged
+	 * the message, QoS 0 messages complete as soon as they were handed to the
+	 * client.
+	 * 
+	 * @return the delivery token
+	 */
+	private IMqttDeliveryToken publish(String topic, Marshaller<T> marshaller, T message, final SendCallback callback) throws TransportException,
+			MqttException {
+		MqttSession session = session();
+		session.connect();
+		byte[] bytes;
+		try (MessageBuffer buffer = MessageBuffer.get()) {
+			marshaller.marshal(message, buffer);
+			// the client keeps a reference to the payload, hand over a copy
+			bytes = buffer.toByteArray();
+		}
+		MqttMessage mqttMessage = new MqttMessage(bytes);
+		if (qos != null)
+			mqttMessage.setQos(qos.intValue());
 		topic = removeLeadingSlash(topic);
+
+		if (mqttMessage.getQos() == 0) {
+			IMqttDeliveryToken token = session.publish(topic, mqttMessage, null);
+			if (callback != null)
+				callback.completed();
+			return token;
+		}
+
 		try {
-			if (!client.isConnected())
-				try {
-					client.connect(connectOptions);
-				} catch (MqttException e) {
-					switch (e.getReasonCode()) {
-					case MqttException.REASON_CODE_SERVER_CONNECT_ERROR:
-						throw new TransportConnectionException("Failed to connect to MQTT URI '" + uri + "': " + e.getMessage(), e);
-					default:
-						throw e;
-					}
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("MQTT transport was interrupted", e);
+		}
+		try {
+			return session.publish(topic, mqttMessage, new IMqttActionListener() {
+				@Override
+				public void onSuccess(IMqttToken token) {
+					inFlight.release();
+					if (callback != null)
+						callback.completed();
 				}
-			try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-				marshaller.marshal(message, stream);
-				byte[] bytes = stream.toByteArray();
-				if (qos != null)
-					client.publish(topic, bytes, qos.intValue(), false);
-				else
-					client.publish(topic, new MqttMessage(bytes));
-			}
-		} catch (TransportConnectionException e) {
+
+				@Override
+				public void onFailure(IMqttToken token, Throwable exception) {
+					inFlight.release();
+					if (callback != null)
+						callback.failed(exception instanceof MqttException ? error((MqttException) exception) : new TransportException(
+								"Failed to send MQTT message: " + exception, exception));
+				}
+			});
+		} catch (MqttException | RuntimeException e) {
+			inFlight.release();
 			throw e;
-		} catch (Exception e) {
-			throw new TransportException("Failed to send MQTT message: " + e.getMessage(), e);
+		}
+	}
+
+	private TransportException error(MqttException e) {
+		switch (e.getReasonCode()) {
+		case MqttException.REASON_CODE_CLIENT_NOT_CONNECTED:
+		case MqttException.REASON_CODE_CONNECTION_LOST:
+		case MqttException.REASON_CODE_CLIENT_TIMEOUT:
+		case MqttException.REASON_CODE_MAX_INFLIGHT:
+			return new TransportConnectionException("Failed to send MQTT message: " + e.getMessage(), e);
+		default:
+			return new TransportException("Failed to send MQTT message: " + e.getMessage(), e);
 		}
 	}
 
 	@Override
 	protected synchronized void subscribe(String topic, final StreamCallback callback) throws TransportException {
-		if (client == null)
-			throw new TransportException("MQTT client not initialized");
-
 		if (topic == null)
 			throw new TransportException("Either topic or topic extension must be provided for MQTT");
 
-		
-
-		try {
-			if (!client.isConnected())
-				client.connect(connectOptions);
-			subscribeInternal(topic, callback);
-			subscriptions.put(topic, callback);
-		} catch (Exception e) {
-			throw new TransportException("Failed to subscribe to MQTT topic: " + e.getMessage(), e);
-		}
-		
-	}
-	
-	private void subscribeInternal(String topic, final StreamCallback callback) throws MqttException {
 		final String originalPath = topic;
-		final String path = removeLeadingSlash(topic);
-		client.subscribe(path, new IMqttMessageListener() {
+		IMqttMessageListener listener = new IMqttMessageListener() {
 			@Override
 			public void messageArrived(String topic, MqttMessage message) throws Exception {
-				callback.arrived(originalPath, new ByteArrayInputStream(message.getPayload()));
+				// delivered by the inbound workers, the callback thread of the
+				// client only queues the message
+				if (orderByTopic && callback instanceof KeyedStreamCallback)
+					((KeyedStreamCallback) callback).arrived(originalPath, topic, new ByteArrayInputStream(message.getPayload()));
+				else
+					callback.arrived(originalPath, new ByteArrayInputStream(message.getPayload()));
 			}
-		});
+		};
+		try {
+			String filter = filter(topic);
+			session().subscribe(filter, listener, timeout);
+			subscriptions.put(filter, listener);
+		} catch (TransportException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TransportException("Failed to subscribe to MQTT topic: " + e.getMessage(), e);
+		}
 	}
 
 	@Override
 	protected synchronized void unsubscribe(String path) throws TransportException {
-		if (client == null)
-			throw new TransportException("MQTT client not initialized");
-		String path1 = removeLeadingSlash(path);
+		String topic = filter(path);
+		IMqttMessageListener listener = subscriptions.remove(topic);
+		if (listener == null)
+			return;
 		try {
-			if (!client.isConnected())
-				client.connect(connectOptions);
-			client.unsubscribe(path1);
-			subscriptions.remove(path);
+			session().unsubscribe(topic, listener, timeout);
 		} catch (Exception e) {
 			throw new TransportException("Failed to unsubscribe from MQTT topic: " + e.getMessage(), e);
 		}
@@ -283,28 +411,36 @@ public class MqttTransporter<T> extends StreamTransporter<T> {
 
 	@Override
 	public void dispose() {
-		if (client != null) {
-			try {
+		super.dispose();
+		MqttSession session;
+		synchronized (this) {
+			session = this.session;
+			this.session = null;
+			disposed = true;
+		}
+		if (session != null) {
+			for (Entry<String, IMqttMessageListener> s : subscriptions.entrySet()) {
 				try {
-					if (client.isConnected()){
-						client.setCallback(null);
-						client.disconnect();
-					}
-				} finally {
-					client.close();
+					session.unsubscribe(s.getKey(), s.getValue(), timeout);
+				} catch (Exception e) {
+					log.log(Level.FINE, "Failed to unsubscribe from MQTT topic " + s.getKey(), e);
 				}
-			} catch (NullPointerException e) {
-				// ignore any exceptions (sometimes an NPE is thrown by the MQTT
-				// client)
-				log.log(Level.FINE, "Failed to close MQTT connection", e);
-			} catch (Exception e) {
-				log.log(Level.SEVERE, "Failed to close MQTT connection: " + e.getMessage(), e);
-			} finally {
-				client = null;
 			}
+			subscriptions.clear();
+			session.release();
 		}
 	}
 
+	/**
+	 * @return the topic filter to subscribe, shared if a group is configured
+	 */
+	private String filter(String topic) {
+		topic = removeLeadingSlash(topic);
+		if (sharedGroup != null && !topic.startsWith("$share/"))
+			return "$share/" + sharedGroup + "/" + topic;
+		return topic;
+	}
+
 	private String removeLeadingSlash(String topic) {
 		if (topic != null && topic.startsWith("/")) {
 			topic = topic.substring(1);
@@ -0,0 +1,58 @@
+package havis.transport.common;
+
+/**
+ * Spaces requests to a server which throttles the client. The interval
+ * between requests grows multiplicatively when the server throttles and
+ * shrinks gradually with each successful request, until requests are sent
+ * without delay again.
+ */
+class Pacer {
+
+	private final static long MIN_INTERVAL = 10;
+	private final static long MAX_INTERVAL = 60 * 1000;
+
+	private long interval;
+	private long next;
+
+	/**
+	 * Wait until the next request may be sent
+	 * 
+	 * @throws InterruptedException
+	 *             if waiting was interrupted
+	 */
+	void await() throws InterruptedException {
+		long delay;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			delay = next - now;
+			// reserve the slot for this request
+			next = Math.max(next, now) + interval;
+		}
+		if (delay > 0)
+			Thread.sleep(delay);
+	}
+
+	/**
+	 * Report a successful request
+	 */
+	synchronized void succeeded() {
+		if (interval > 0) {
+			interval -= Math.max(1, interval / 8);
+			if (interval < MIN_INTERVAL)
+				interval = 0;
+		}
+	}
+
+	/**
+	 * Report a throttled request
+	 * 
+	 * @param retryAfter
+	 *            the time in milliseconds requested by the server or -1, at
+	 *            most the maximum interval is honored
+	 */
+	synchronized void throttled(long retryAfter) {
+		interval = Math.min(MAX_INTERVAL, Math.max(MIN_INTERVAL, interval * 2));
+		long now = System.currentTimeMillis();
+		next = Math.max(next, now + Math.max(Math.min(retryAfter, MAX_INTERVAL), interval));
+	}
+}
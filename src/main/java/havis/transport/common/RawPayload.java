@@ -0,0 +1,140 @@
+package havis.transport.common;
+
+import havis.transport.Marshaller;
+import havis.transport.TransportException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Pre-serialized message which is sent as is, i.e. without transformation
+ * and without marshalling. Messages of type byte[] and {@link ByteBuffer}
+ * are treated the same way.
+ */
+public class RawPayload {
+
+	private final static int CHUNK_SIZE = 8192;
+
+	private final ByteBuffer data;
+	private final String mimeType;
+
+	/**
+	 * Creates a new raw payload
+	 *
+	 * @param data
+	 *            the wire-ready data
+	 * @param mimeType
+	 *            the MIME type of the data or null to use the MIME type of
+	 *            the transporter
+	 */
+	public RawPayload(byte[] data, String mimeType) {
+		this(ByteBuffer.wrap(Objects.requireNonNull(data, "data must not be null")), mimeType);
+	}
+
+	/**
+	 * Creates a new raw payload
+	 *
+	 * @param data
+	 *            the wire-ready data from the current position to the limit
+	 *            of the buffer
+	 * @param mimeType
+	 *            the MIME type of the data or null to use the MIME type of
+	 *            the transporter
+	 */
+	public RawPayload(ByteBuffer data, String mimeType) {
+		this.data = Objects.requireNonNull(data, "data must not be null").slice();
+		this.mimeType = mimeType;
+	}
+
+	/**
+	 * Get the raw payload for a message
+	 *
+	 * @param message
+	 *            the message
+	 * @return the raw payload or null, if the message is not pre-serialized
+	 */
+	static RawPayload of(Object message) {
+		if (message instanceof RawPayload)
+			return (RawPayload) message;
+		if (message instanceof byte[])
+			return new RawPayload((byte[]) message, null);
+		if (message instanceof ByteBuffer)
+			return new RawPayload((ByteBuffer) message, null);
+		return null;
+	}
+
+	/**
+	 * @return whether the message is pre-serialized
+	 */
+	static boolean isRaw(Object message) {
+		return message instanceof RawPayload || message instanceof byte[] || message instanceof ByteBuffer;
+	}
+
+	/**
+	 * @return a read-only view of the data
+	 */
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return the MIME type of the data or null
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * @return the length of the data in bytes
+	 */
+	public int getLength() {
+		return data.remaining();
+	}
+
+	/**
+	 * Write the data to the specified stream, data backed by an array is
+	 * written without copying
+	 *
+	 * @param stream
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	void writeTo(OutputStream stream) throws IOException {
+		if (data.hasArray()) {
+			stream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			ByteBuffer source = data.duplicate();
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())];
+			while (source.hasRemaining()) {
+				int length = Math.min(chunk.length, source.remaining());
+				source.get(chunk, 0, length);
+				stream.write(chunk, 0, length);
+			}
+		}
+	}
+
+	/**
+	 * @return a marshaller writing the data regardless of the message
+	 */
+	<T> Marshaller<T> getMarshaller() {
+		return new Marshaller<T>() {
+			@Override
+			public void marshal(T message, OutputStream target) throws TransportException {
+				try {
+					writeTo(target);
+				} catch (IOException e) {
+					throw new TransportException("Failed to write message to output stream", e);
+				}
+			}
+
+			@Override
+			public T unmarshal(InputStream source) throws TransportException {
+				throw new TransportException("Raw payloads can't be read");
+			}
+		};
+	}
+}
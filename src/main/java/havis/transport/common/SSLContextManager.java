@@ -1,22 +1,35 @@
 package havis.transport.common;
 
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.KeyManager;
@@ -27,9 +40,35 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import javax.xml.bind.DatatypeConverter;
 
 public class SSLContextManager {
 
+	private final static Logger log = Logger.getLogger(SSLContextManager.class.getName());
+
+	// seconds
+	private final static int SESSION_TIMEOUT = 24 * 60 * 60;
+
+	private static class Entry {
+		// the same factory instance is returned for the same context, so
+		// transporters recognize unchanged certificates
+		private final SSLSocketFactory factory;
+		private final String hash;
+		private volatile boolean valid;
+
+		private Entry(SSLContext context, String hash, boolean valid) {
+			this.factory = context.getSocketFactory();
+			this.hash = hash;
+			this.valid = valid;
+		}
+	}
+
+	private final static Map<String, Entry> contexts = new ConcurrentHashMap<>();
+	private final static Set<String> watched = new HashSet<>();
+	private final static AtomicLong generations = new AtomicLong();
+	private static volatile WatchService watcher;
+	private static boolean watcherFailed;
+
 	private static SSLContext trustAllContext;
 	private static HostnameVerifier trustAllVerifier;
 
@@ -62,63 +101,199 @@ public class SSLContextManager {
 		}
 	}
 
-	public synchronized static SSLSocketFactory createSSLSocketFactory(String subscriberId, String protocol) throws KeyStoreException, NoSuchAlgorithmException,
+	/**
+	 * Create the socket factory for the certificates of the specified
+	 * subscriber. Contexts are cached by subscriber, protocol and content of
+	 * the certificate files, so sessions are resumed when the factory is
+	 * requested again for unchanged certificates.
+	 * 
+	 * @param subscriberId
+	 *            the subscriber ID
+	 * @param protocol
+	 *            the SSL/TLS protocol
+	 * @return the socket factory or null if the subscriber has no certificates
+	 */
+	public static SSLSocketFactory createSSLSocketFactory(String subscriberId, String protocol) throws KeyStoreException, NoSuchAlgorithmException,
 			CertificateException, FileNotFoundException, IOException, UnrecoverableKeyException, KeyManagementException {
+		String key = subscriberId + "/" + protocol;
+		Entry entry = contexts.get(key);
+		if (entry != null && entry.valid)
+			return entry.factory;
+
+		// changes while reading the files leave the new entry invalid
+		long generation = generations.get();
+		boolean watching = watch(subscriberId);
+		Path keyPath = Paths.get(Environment.CERT_FOLDER, subscriberId, Environment.KEYSTORE_FILE_NAME);
+		Path trustedPath = Paths.get(Environment.CERT_FOLDER, subscriberId, Environment.TRUST_FILE_NAME);
+		byte[] keyData = read(keyPath);
+		byte[] trustedData = read(trustedPath);
+		if (keyData == null && trustedData == null) {
+			contexts.remove(key);
+			return null;
+		}
+
+		String hash = hash(keyData, trustedData);
+		if (entry != null && entry.hash.equals(hash)) {
+			// files were touched, but content is unchanged
+			entry.valid = watching && generation == generations.get();
+			return entry.factory;
+		}
 
 		KeyManager[] kms = null;
 		TrustManager[] tms = null;
 
 		// Client Key Store - only if Client Store is set
-		Path keyPath = Paths.get(Environment.CERT_FOLDER, subscriberId, Environment.KEYSTORE_FILE_NAME);
-		if (keyPath.toFile().exists()) {
+		if (keyData != null) {
 			KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
 			//TODO MICA depended passwd
-			try (InputStream is = new FileInputStream(keyPath.toString())) {
-				keyStore.load(is, Environment.KEYSTORE_PASSWD.toCharArray());
-			}
+			keyStore.load(new ByteArrayInputStream(keyData), Environment.KEYSTORE_PASSWD.toCharArray());
 			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
 			kmf.init(keyStore, Environment.KEYSTORE_PASSWD.toCharArray());
 			kms = kmf.getKeyManagers();
 		}
 
 		// Trusted Key Store - only if Trusted Cert is set
-		Path trustedPath = Paths.get(Environment.CERT_FOLDER, subscriberId, Environment.TRUST_FILE_NAME);
-		if (trustedPath.toFile().exists()) {
+		if (trustedData != null) {
 			TrustManagerFactory tm = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
 			KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
 			trusted.load(null, null);
-			insertTrusted(trusted, trustedPath.toString());
+			insertTrusted(trusted, trustedData);
 			tm.init(trusted);
 			tms = tm.getTrustManagers();
 		}
 
-		if (kms == null && tms == null) {
+		// default secure random is seeded once per VM
+		SSLContext sslcontext = SSLContext.getInstance(protocol);
+		sslcontext.init(kms, tms, null);
+		sslcontext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+		entry = new Entry(sslcontext, hash, watching && generation == generations.get());
+		contexts.put(key, entry);
+		return entry.factory;
+	}
+
+	private static byte[] read(Path path) throws IOException {
+		try {
+			return Files.readAllBytes(path);
+		} catch (NoSuchFileException e) {
 			return null;
-		} else {
-			SSLContext sslcontext = SSLContext.getInstance(protocol);
-			sslcontext.init(kms, tms, new SecureRandom());
-			return sslcontext.getSocketFactory();
-		}		
+		}
 	}
 
-	public synchronized static SSLSocketFactory createTrustedAllContext() {
+	private static String hash(byte[]... data) throws NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for (byte[] bytes : data) {
+			// separate absent from empty files
+			digest.update((byte) (bytes != null ? 1 : 0));
+			if (bytes != null)
+				digest.update(bytes);
+		}
+		return DatatypeConverter.printHexBinary(digest.digest());
+	}
+
+	/**
+	 * Watch the certificate folder of the subscriber, changes invalidate the
+	 * cached context. Without a watcher, the content is compared on each
+	 * request.
+	 * 
+	 * @return true if the folder is watched
+	 */
+	private static boolean watch(String subscriberId) {
+		synchronized (contexts) {
+			if (watcher == null && !watcherFailed) {
+				try {
+					Path root = Paths.get(Environment.CERT_FOLDER);
+					Files.createDirectories(root);
+					watcher = root.getFileSystem().newWatchService();
+					root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							process();
+						}
+					}, "Transport-Cert-Watcher");
+					thread.setDaemon(true);
+					thread.start();
+				} catch (IOException | UnsupportedOperationException e) {
+					log.log(Level.WARNING, "Failed to watch certificate folder, changes are detected by content", e);
+					watcherFailed = true;
+					watcher = null;
+				}
+			}
+			if (watcher != null && !watched.contains(subscriberId)) {
+				Path folder = Paths.get(Environment.CERT_FOLDER, subscriberId);
+				try {
+					if (Files.isDirectory(folder)) {
+						folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+								StandardWatchEventKinds.ENTRY_MODIFY);
+						watched.add(subscriberId);
+					}
+				} catch (IOException e) {
+					log.log(Level.FINE, "Failed to watch certificate folder of subscriber " + subscriberId, e);
+				}
+			}
+			return watched.contains(subscriberId);
+		}
+	}
+
+	private static void process() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path folder = (Path) key.watchable();
+			Path root = Paths.get(Environment.CERT_FOLDER);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					invalidate(null);
+				} else if (folder.equals(root)) {
+					// subscriber folder created or deleted
+					String subscriberId = event.context().toString();
+					synchronized (contexts) {
+						watched.remove(subscriberId);
+					}
+					invalidate(subscriberId);
+				} else {
+					invalidate(folder.getFileName().toString());
+				}
+			}
+			key.reset();
+		}
+	}
+
+	/**
+	 * Invalidate the cached contexts, the certificate files are read again on
+	 * the next request
+	 * 
+	 * @param subscriberId
+	 *            the subscriber ID or null for all subscribers
+	 */
+	static void invalidate(String subscriberId) {
+		generations.incrementAndGet();
+		for (Map.Entry<String, Entry> entry : contexts.entrySet()) {
+			if (subscriberId == null || entry.getKey().startsWith(subscriberId + "/"))
+				entry.getValue().valid = false;
+		}
+	}
+
+	public static SSLSocketFactory createTrustedAllContext() {
 		return trustAllContext != null ? trustAllContext.getSocketFactory() : null;
 	}
 
-	public synchronized static HostnameVerifier createTrustAllVerifier() {
+	static SSLContext getTrustedAllContext() {
+		return trustAllContext;
+	}
+
+	public static HostnameVerifier createTrustAllVerifier() {
 		return trustAllVerifier;
 	}
 
-	private static void insertTrusted(KeyStore keyStore, String fileName) {
+	private static void insertTrusted(KeyStore keyStore, byte[] data) {
 		try {
 			CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			InputStream inputStream = new FileInputStream(fileName);
-			Certificate cert;
-			try {
-				cert = cf.generateCertificate(inputStream);
-			} finally {
-				inputStream.close();
-			}
+			Certificate cert = cf.generateCertificate(new ByteArrayInputStream(data));
 			keyStore.setCertificateEntry(UUID.randomUUID().toString(), cert);
 		} catch (Exception e) {
 			e.printStackTrace();
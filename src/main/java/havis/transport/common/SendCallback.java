@@ -0,0 +1,23 @@
+package havis.transport.common;
+
+import havis.transport.TransportException;
+
+/**
+ * Callback for the outcome of an asynchronous send
+ */
+interface SendCallback {
+
+	/**
+	 * Called when the message was delivered
+	 */
+	void completed();
+
+	/**
+	 * Called when the delivery of the message failed
+	 * 
+	 * @param error
+	 *            the error, a {@link havis.transport.TransportConnectionException}
+	 *            if the delivery can be repeated
+	 */
+	void failed(TransportException error);
+}
@@ -4,5 +4,15 @@ import java.io.InputStream;
 
 public interface StreamCallback {
 
-	void arrived(String path, InputStream stream);
+	/**
+	 * Called when a message arrived, the stream might be read after this
+	 * method returned
+	 * 
+	 * @param path
+	 *            the path the message arrived on
+	 * @param stream
+	 *            the stream containing the message
+	 * @return true if the message was accepted, false if it was discarded
+	 */
+	boolean arrived(String path, InputStream stream);
 }
\ No newline at end of file
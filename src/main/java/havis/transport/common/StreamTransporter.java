@@ -8,9 +8,10 @@ import havis.transport.ValidationException;
 
 import java.io.InputStream;
 import java.net.URI;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -29,16 +30,80 @@ public abstract class StreamTransporter<T> implements Transporter<T> {
 
 	private final static Logger log = Logger.getLogger(StreamTransporter.class.getName());
 
+	/**
+	 * Number of threads delivering received messages to the callbacks
+	 */
+	public final static String INBOUND_THREADS_PROPERTY = Transporter.PREFIX + "Inbound.Threads";
+	/**
+	 * Maximum number of received messages waiting for delivery per thread
+	 */
+	public final static String INBOUND_QUEUE_SIZE_PROPERTY = Transporter.PREFIX + "Inbound.QueueSize";
+	/**
+	 * Whether received messages of the same path are delivered in order
+	 */
+	public final static String INBOUND_ORDERED_PROPERTY = Transporter.PREFIX + "Inbound.Ordered";
+	/**
+	 * Behavior if the inbound queue is full, one of "block", "discard",
+	 * "discard-oldest" or "caller-runs"
+	 */
+	public final static String INBOUND_POLICY_PROPERTY = Transporter.PREFIX + "Inbound.Policy";
+
+	private final static int DEFAULT_INBOUND_THREADS = 1;
+	private final static int DEFAULT_INBOUND_QUEUE_SIZE = 1000;
+
+	// paths might be null, which is not supported as a key
+	private final static String NO_PATH = "";
+
 	private final StreamFactory<T> writer = new StreamFactory<>();
-	private Map<String, List<Callback>> callbacks = new HashMap<>();
+	private Map<String, List<Callback>> callbacks = new ConcurrentHashMap<>();
 	private Lock lock = new ReentrantLock();
 
+	private int inboundThreads = DEFAULT_INBOUND_THREADS;
+	private int inboundQueueSize = DEFAULT_INBOUND_QUEUE_SIZE;
+	private boolean inboundOrdered = true;
+	private InboundDispatcher.Policy inboundPolicy = InboundDispatcher.Policy.BLOCK;
+	private InboundDispatcher dispatcher;
+
 	@Override
 	public final void init(Class<T> clazz, URI uri, Map<String, String> properties) throws ValidationException {
 		writer.init(clazz, getDefaultMimeType(), properties);
+		if (properties != null) {
+			for (Entry<String, String> entry : properties.entrySet()) {
+				String key = entry.getKey();
+				if (key != null && key.startsWith(Transporter.PREFIX + "Inbound")) {
+					switch (key) {
+					case INBOUND_THREADS_PROPERTY:
+						inboundThreads = parsePositive(entry.getValue(), "inbound threads");
+						break;
+					case INBOUND_QUEUE_SIZE_PROPERTY:
+						inboundQueueSize = parsePositive(entry.getValue(), "inbound queue size");
+						break;
+					case INBOUND_ORDERED_PROPERTY:
+						inboundOrdered = Boolean.parseBoolean(entry.getValue());
+						break;
+					case INBOUND_POLICY_PROPERTY:
+						inboundPolicy = InboundDispatcher.Policy.parse(entry.getValue());
+						break;
+					default:
+						throw new ValidationException("Unknown property key '" + key + "'");
+					}
+				}
+			}
+		}
 		init(uri, properties);
 	}
 
+	private static int parsePositive(String value, String name) throws ValidationException {
+		try {
+			int result = Integer.parseInt(value);
+			if (result < 1)
+				throw new ValidationException("Value '" + value + "' for " + name + " must be greater than zero");
+			return result;
+		} catch (NumberFormatException e) {
+			throw new ValidationException("Invalid " + name + " value '" + value + "'", e);
+		}
+	}
+
 	@Override
 	public boolean supportsSocketFactory() {
 		return false;
@@ -52,13 +117,28 @@ public abstract class StreamTransporter<T> implements Transporter<T> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public final void send(Object message) throws TransportException {
-		send(writer.getMarshaller(), (T) message);
+		RawPayload payload = RawPayload.of(message);
+		if (payload != null)
+			sendRaw(payload);
+		else
+			send(writer.getMarshaller(), (T) message);
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public final void send(Object message, String name, String path, Map<String, String> properties) throws TransportException {
-		send(writer.getMarshaller(), (T) message, name, path, properties);
+		RawPayload payload = RawPayload.of(message);
+		if (payload != null)
+			sendRaw(payload, name, path, properties);
+		else
+			send(writer.getMarshaller(), (T) message, name, path, properties);
+	}
+
+	/**
+	 * @return the marshaller for messages of this transporter
+	 */
+	protected Marshaller<T> getMarshaller() {
+		return writer.getMarshaller();
 	}
 
 	/**
@@ -110,6 +190,38 @@ public abstract class StreamTransporter<T> implements Transporter<T> {
 		send(marshaller, message);
 	}
 
+	/**
+	 * Send pre-serialized data as is. By default the data is written using
+	 * the regular send method without marshalling.
+	 * 
+	 * @param payload
+	 *            the payload to send
+	 * @throws TransportException
+	 *             if transport fails
+	 */
+	protected void sendRaw(RawPayload payload) throws TransportException {
+		send(payload.<T> getMarshaller(), null);
+	}
+
+	/**
+	 * Send pre-serialized data as is with additional information. By default
+	 * the data is written using the regular send method without marshalling.
+	 * 
+	 * @param payload
+	 *            the payload to send
+	 * @param name
+	 *            the name
+	 * @param path
+	 *            the path which extends the URI
+	 * @param properties
+	 *            the properties containing additional settings for transport
+	 * @throws TransportException
+	 *             if transport fails
+	 */
+	protected void sendRaw(RawPayload payload, String name, String path, Map<String, String> properties) throws TransportException {
+		send(payload.<T> getMarshaller(), null, name, path, properties);
+	}
+
 	protected void subscribe(String path, StreamCallback callback) throws TransportException {
 		throw new TransportException("Transporter does not support receiving");
 	}
@@ -122,26 +234,29 @@ public abstract class StreamTransporter<T> implements Transporter<T> {
 	public void addPath(String path, final Callback callback) throws TransportException {
 		lock.lock();
 		try {
-			List<Callback> callbacks = this.callbacks.get(path);
+			List<Callback> callbacks = this.callbacks.get(key(path));
 			if (callbacks == null) {
+				if (dispatcher == null)
+					dispatcher = new InboundDispatcher(inboundThreads, inboundQueueSize, inboundOrdered, inboundPolicy);
+				final InboundDispatcher dispatcher = this.dispatcher;
+				subscribe(path, new KeyedStreamCallback() {
+					@Override
+					public boolean arrived(String path, InputStream stream) {
+						return arrived(path, path, stream);
+					}
 
-				subscribe(path, new StreamCallback() {
 					@Override
-					public void arrived(String path, InputStream stream) {
-						Marshaller<T> marshaller = writer.getMarshaller();
-						try {
-							T message = marshaller.unmarshal(stream);
-							List<Callback> currentCallbacks = StreamTransporter.this.callbacks.get(path);
-							if (currentCallbacks != null)
-								for (Callback callback : currentCallbacks)
-									callback.arrived(path, message);
-						} catch (TransportException e) {
-							log.log(Level.SEVERE, "Failed to read message body", e);
-						}
+					public boolean arrived(final String path, String key, final InputStream stream) {
+						return dispatcher.dispatch(key, new Runnable() {
+							@Override
+							public void run() {
+								deliver(path, stream);
+							}
+						});
 					}
 				});
 				callbacks = new CopyOnWriteArrayList<Callback>();
-				this.callbacks.put(path, callbacks);
+				this.callbacks.put(key(path), callbacks);
 			}
 			callbacks.add(callback);
 		} finally {
@@ -149,15 +264,35 @@ public abstract class StreamTransporter<T> implements Transporter<T> {
 		}
 	}
 
+	private void deliver(String path, InputStream stream) {
+		List<Callback> currentCallbacks = this.callbacks.get(key(path));
+		if (currentCallbacks != null) {
+			Marshaller<T> marshaller = writer.getMarshaller();
+			try {
+				T message = marshaller.unmarshal(stream);
+				for (Callback callback : currentCallbacks)
+					callback.arrived(path, message);
+			} catch (TransportException e) {
+				log.log(Level.SEVERE, "Failed to read message body", e);
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Failed to deliver message", e);
+			}
+		}
+	}
+
+	private static String key(String path) {
+		return path != null ? path : NO_PATH;
+	}
+
 	@Override
 	public void removePath(String path, final Callback callback) throws TransportException {
 		lock.lock();
 		try {
-			List<Callback> callbacks = this.callbacks.get(path);
+			List<Callback> callbacks = this.callbacks.get(key(path));
 			if (callbacks != null) {
 				callbacks.remove(callback);
 				if (callbacks.isEmpty()) {
-					this.callbacks.remove(path);
+					this.callbacks.remove(key(path));
 					unsubscribe(path);
 				}
 			}
@@ -165,4 +300,17 @@ public abstract class StreamTransporter<T> implements Transporter<T> {
 			lock.unlock();
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public void dispose() {
+		lock.lock();
+		try {
+			if (dispatcher != null) {
+				dispatcher.shutdown();
+				dispatcher = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,745 @@
+package havis.transport.common;
+
+import havis.transport.TransportConnectionException;
+import havis.transport.TransportException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking engine shared by all persistent TCP connections. A single
+ * selector thread connects, writes the queued frames of each connection when
+ * the socket is writable and detects connections closed by the peer. Sends
+ * complete as soon as the frame was written to the socket buffer of the
+ * kernel. The same thread accepts inbound connections and splits the received
+ * data into frames. Callbacks are called on the selector thread, a blocking
+ * callback delays all channels of the engine.
+ */
+class TcpEngine implements Runnable {
+
+	private final static Logger log = Logger.getLogger(TcpEngine.class.getName());
+
+	private final static AtomicInteger count = new AtomicInteger();
+
+	// buffers per gathering write, below the usual IOV_MAX
+	private final static int MAX_BUFFERS = 512;
+	private final static long IDLE_CHECK_INTERVAL = 1000;
+
+	private static TcpEngine instance;
+	private static int references;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	// only accessed by the selector thread
+	private final Set<Connection> connecting = new HashSet<>();
+	private final Set<Connection> delayed = new HashSet<>();
+	private final Set<Listener> listeners = new HashSet<>();
+	private long nextIdleCheck;
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_BUFFERS];
+	private final ByteBuffer discard = ByteBuffer.allocateDirect(4096);
+	private final ByteBuffer receive = ByteBuffer.allocate(64 * 1024);
+	private volatile boolean running = true;
+
+	private TcpEngine() throws IOException {
+		selector = Selector.open();
+		Thread thread = new Thread(this, "Transport-TCP-Engine-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the shared engine, the engine is started with the first reference
+	 *
+	 * @return the engine
+	 * @throws IOException
+	 *             if the selector could not be opened
+	 */
+	static synchronized TcpEngine acquire() throws IOException {
+		if (instance == null)
+			instance = new TcpEngine();
+		references++;
+		return instance;
+	}
+
+	/**
+	 * Release a reference to the shared engine, the engine is stopped with
+	 * the last reference
+	 */
+	static synchronized void release() {
+		if (instance != null && --references == 0) {
+			instance.stop();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Create an engine which is not shared, e.g. for a listener whose
+	 * callback may block
+	 *
+	 * @return the engine
+	 * @throws IOException
+	 *             if the selector could not be opened
+	 */
+	static TcpEngine open() throws IOException {
+		return new TcpEngine();
+	}
+
+	/**
+	 * Stop an engine which is not shared
+	 */
+	void stop() {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				running = false;
+			}
+		});
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+		if (!running)
+			// the engine might have stopped before the task was queued
+			drain();
+	}
+
+	/**
+	 * Run the tasks left after the engine stopped, queued frames fail
+	 */
+	private void drain() {
+		synchronized (tasks) {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.log(Level.FINE, "Failed to run task of stopped TCP engine", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					task.run();
+				if (!running)
+					break;
+				selector.select(timeout());
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					((Handler) key.attachment()).handle(key);
+				}
+				expire();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			log.log(Level.SEVERE, "TCP engine failed", e);
+		} finally {
+			running = false;
+			for (SelectionKey key : selector.keys())
+				((Handler) key.attachment()).close(new TransportConnectionException("TCP engine stopped"));
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			drain();
+		}
+	}
+
+	private long timeout() {
+		long timeout = listeners.isEmpty() ? 0 : IDLE_CHECK_INTERVAL;
+		long now = System.currentTimeMillis();
+		for (Connection connection : connecting) {
+			long remaining = Math.max(1, connection.deadline - now);
+			if (timeout == 0 || remaining < timeout)
+				timeout = remaining;
+		}
+		for (Connection connection : delayed) {
+			long remaining = Math.max(1, connection.flushAt - now);
+			if (timeout == 0 || remaining < timeout)
+				timeout = remaining;
+		}
+		return timeout;
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		if (now >= nextIdleCheck) {
+			nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+			for (Listener listener : listeners)
+				listener.expire(now);
+		}
+		for (Iterator<Connection> it = connecting.iterator(); it.hasNext();) {
+			Connection connection = it.next();
+			if (connection.deadline <= now) {
+				it.remove();
+				connection.failAll(new TransportConnectionException("Failed to connect to '" + connection.host + ":" + connection.port
+						+ "': connect timed out"));
+			}
+		}
+		for (Iterator<Connection> it = delayed.iterator(); it.hasNext();) {
+			Connection connection = it.next();
+			if (connection.flushAt <= now) {
+				it.remove();
+				connection.flushAt = 0;
+				connection.due = true;
+				if (connection.key != null && !connecting.contains(connection))
+					connection.interest();
+			}
+		}
+	}
+
+	/**
+	 * Handles the events of a registered channel
+	 */
+	private interface Handler {
+		void handle(SelectionKey key);
+
+		void close(TransportException error);
+	}
+
+	/**
+	 * Frame queued for writing
+	 */
+	private static class Frame {
+		private final ByteBuffer[] data;
+		private final SendCallback callback;
+		private ByteBuffer[] buffers;
+		private long remaining;
+		private int attempts;
+
+		private Frame(ByteBuffer[] data, SendCallback callback) {
+			this.data = data;
+			this.callback = callback;
+			reset();
+		}
+
+		private void reset() {
+			buffers = new ByteBuffer[data.length];
+			remaining = 0;
+			for (int i = 0; i < data.length; i++) {
+				buffers[i] = data[i].duplicate();
+				remaining += buffers[i].remaining();
+			}
+		}
+	}
+
+	/**
+	 * Create a connection, the connection is established with the first frame
+	 *
+	 * @param host
+	 *            the host
+	 * @param port
+	 *            the port
+	 * @param timeout
+	 *            the connect timeout in milliseconds, zero for none
+	 * @param noDelay
+	 *            whether Nagle's algorithm is disabled
+	 * @param sendBufferSize
+	 *            the socket send buffer size or zero for the default
+	 * @param receiveBufferSize
+	 *            the socket receive buffer size or zero for the default
+	 * @param coalesceDelay
+	 *            the time in milliseconds frames are held back to be written
+	 *            together, zero to write as soon as possible
+	 * @param coalesceBytes
+	 *            the number of bytes written together at most, frames held
+	 *            back are written as soon as they reach this size
+	 * @return the connection
+	 */
+	Connection connection(String host, int port, int timeout, boolean noDelay, int sendBufferSize, int receiveBufferSize, int coalesceDelay,
+			int coalesceBytes) {
+		return new Connection(host, port, timeout, noDelay, sendBufferSize, receiveBufferSize, coalesceDelay, coalesceBytes);
+	}
+
+	/**
+	 * Persistent connection to one endpoint, state is only accessed by the
+	 * selector thread
+	 */
+	class Connection implements Handler {
+
+		private final String host;
+		private final int port;
+		private final int timeout;
+		private final boolean noDelay;
+		private final int sendBufferSize;
+		private final int receiveBufferSize;
+		private final int coalesceDelay;
+		private final int coalesceBytes;
+
+		private final Queue<Frame> frames = new ArrayDeque<>();
+		private SocketChannel channel;
+		private SelectionKey key;
+		private long deadline;
+		private boolean disposed;
+		// bytes of the queued frames not written yet
+		private long queued;
+		// whether the queued frames are written when writable
+		private boolean due;
+		private long flushAt;
+
+		private Connection(String host, int port, int timeout, boolean noDelay, int sendBufferSize, int receiveBufferSize, int coalesceDelay,
+				int coalesceBytes) {
+			this.host = host;
+			this.port = port;
+			this.timeout = timeout;
+			this.noDelay = noDelay;
+			this.sendBufferSize = sendBufferSize;
+			this.receiveBufferSize = receiveBufferSize;
+			this.coalesceDelay = coalesceDelay;
+			this.coalesceBytes = coalesceBytes;
+		}
+
+		/**
+		 * Queue a frame for writing, the connection is established on demand
+		 * and reestablished once if writing the frame fails
+		 *
+		 * @param buffers
+		 *            the frame, must not be modified until completion
+		 * @param callback
+		 *            the callback for the outcome
+		 */
+		void send(ByteBuffer[] buffers, final SendCallback callback) {
+			final Frame frame = new Frame(buffers, callback);
+			if (!running) {
+				fail(frame, new TransportConnectionException("TCP engine stopped"));
+				return;
+			}
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if (disposed) {
+						fail(frame, new TransportException("Transporter has been disposed"));
+						return;
+					}
+					if (!running) {
+						fail(frame, new TransportConnectionException("TCP engine stopped"));
+						return;
+					}
+					frames.add(frame);
+					queued += frame.remaining;
+					if (channel == null)
+						connect();
+					else if (!connecting.contains(Connection.this))
+						schedule();
+				}
+			});
+		}
+
+		/**
+		 * Close the connection, queued frames fail
+		 */
+		void dispose() {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					disposed = true;
+					failAll(new TransportException("Transporter has been disposed"));
+				}
+			});
+		}
+
+		private void connect() {
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				Socket socket = channel.socket();
+				socket.setTcpNoDelay(noDelay);
+				if (sendBufferSize > 0)
+					socket.setSendBufferSize(sendBufferSize);
+				if (receiveBufferSize > 0)
+					socket.setReceiveBufferSize(receiveBufferSize);
+				if (channel.connect(new InetSocketAddress(host, port))) {
+					key = channel.register(selector, 0, this);
+					schedule();
+				} else {
+					key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+					deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+					connecting.add(this);
+				}
+			} catch (IOException | RuntimeException e) {
+				failAll(new TransportConnectionException("Failed to connect to '" + host + ":" + port + "': " + e.getMessage(), e));
+			}
+		}
+
+		/**
+		 * Decide whether the queued frames are written now or held back until
+		 * more frames are queued or the delay elapsed
+		 */
+		private void schedule() {
+			if (!due && (coalesceDelay == 0 || queued >= coalesceBytes)) {
+				due = true;
+				delayed.remove(this);
+				flushAt = 0;
+			} else if (!due && flushAt == 0) {
+				flushAt = System.currentTimeMillis() + coalesceDelay;
+				delayed.add(this);
+			}
+			interest();
+		}
+
+		private void interest() {
+			key.interestOps(due && !frames.isEmpty() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		@Override
+		public void close(TransportException error) {
+			failAll(error);
+		}
+
+		@Override
+		public void handle(SelectionKey key) {
+			try {
+				if (key.isConnectable()) {
+					connecting.remove(this);
+					try {
+						channel.finishConnect();
+					} catch (IOException e) {
+						failAll(new TransportConnectionException("Failed to connect to '" + host + ":" + port + "': " + e.getMessage(), e));
+						return;
+					}
+					schedule();
+				}
+				if (key.isReadable()) {
+					// data sent by the peer is ignored
+					int length;
+					do {
+						discard.clear();
+					} while ((length = channel.read(discard)) > 0);
+					if (length < 0) {
+						reconnect(null);
+						return;
+					}
+				}
+				if (key.isValid() && key.isWritable())
+					flush();
+			} catch (CancelledKeyException e) {
+				// closed meanwhile
+			} catch (IOException e) {
+				reconnect(e);
+			}
+		}
+
+		/**
+		 * Write the queued frames with gathering writes of up to the coalesce
+		 * bytes each
+		 */
+		private void flush() throws IOException {
+			while (!frames.isEmpty()) {
+				int count = 0;
+				long bytes = 0;
+				for (Frame frame : frames) {
+					if (count > 0 && (bytes >= coalesceBytes || count + frame.buffers.length > MAX_BUFFERS))
+						break;
+					for (ByteBuffer buffer : frame.buffers)
+						gather[count++] = buffer;
+					bytes += frame.remaining;
+				}
+				long written;
+				try {
+					written = channel.write(gather, 0, count);
+				} finally {
+					Arrays.fill(gather, 0, count, null);
+				}
+				queued -= written;
+				boolean partial = written < bytes;
+				Frame frame;
+				while (written > 0 && (frame = frames.peek()) != null) {
+					long length = Math.min(written, frame.remaining);
+					frame.remaining -= length;
+					written -= length;
+					if (frame.remaining > 0)
+						break;
+					frames.poll();
+					complete(frame);
+				}
+				if (partial)
+					// socket buffer is full, wait until writable
+					return;
+			}
+			due = false;
+			interest();
+		}
+
+		/**
+		 * The connection was closed by the peer or writing failed. A partially
+		 * written frame is discarded by the peer with the connection, so it is
+		 * written again on a new connection, but only once.
+		 */
+		private void reconnect(IOException cause) {
+			closeChannel();
+			Frame frame = frames.peek();
+			if (frame == null)
+				return;
+			if (++frame.attempts > 1) {
+				frames.poll();
+				fail(frame, new TransportConnectionException("Failed to send to '" + host + ":" + port + "'"
+						+ (cause != null ? ": " + cause.getMessage() : ": connection closed"), cause));
+			}
+			queued = 0;
+			for (Frame f : frames) {
+				f.reset();
+				queued += f.remaining;
+			}
+			if (!frames.isEmpty())
+				connect();
+		}
+
+		private void failAll(TransportException error) {
+			closeChannel();
+			delayed.remove(this);
+			flushAt = 0;
+			due = false;
+			queued = 0;
+			Frame frame;
+			while ((frame = frames.poll()) != null)
+				fail(frame, error);
+		}
+
+		private void closeChannel() {
+			connecting.remove(this);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				channel = null;
+				key = null;
+			}
+		}
+
+		private void complete(Frame frame) {
+			try {
+				frame.callback.completed();
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "Send callback failed", e);
+			}
+		}
+
+		private void fail(Frame frame, TransportException error) {
+			try {
+				frame.callback.failed(error);
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "Send callback failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Listen for inbound connections, the frames received are passed to the
+	 * callback
+	 *
+	 * @param address
+	 *            the address to bind to
+	 * @param path
+	 *            the path passed to the callback
+	 * @param framing
+	 *            the framing of the messages
+	 * @param maxFrameSize
+	 *            the maximum size of a received frame in bytes
+	 * @param maxConnections
+	 *            the maximum number of inbound connections, further
+	 *            connections are closed immediately
+	 * @param idleTimeout
+	 *            the time in milliseconds after which idle connections are
+	 *            closed, zero for none
+	 * @param receiveBufferSize
+	 *            the socket receive buffer size or zero for the default
+	 * @param callback
+	 *            the callback for received frames
+	 * @return the listener
+	 * @throws IOException
+	 *             if binding failed
+	 */
+	Listener listen(InetSocketAddress address, String path, Framing framing, int maxFrameSize, int maxConnections, int idleTimeout,
+			int receiveBufferSize, StreamCallback callback) throws IOException {
+		final Listener listener = new Listener(path, framing, maxFrameSize, maxConnections, idleTimeout, callback);
+		listener.channel = ServerSocketChannel.open();
+		try {
+			listener.channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+			if (receiveBufferSize > 0)
+				// inherited by the accepted sockets
+				listener.channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(receiveBufferSize));
+			listener.channel.bind(address);
+			listener.channel.configureBlocking(false);
+		} catch (IOException e) {
+			listener.channel.close();
+			throw e;
+		}
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.channel.register(selector, SelectionKey.OP_ACCEPT, listener);
+					listeners.add(listener);
+				} catch (IOException | ClosedSelectorException e) {
+					log.log(Level.SEVERE, "Failed to listen on " + listener.channel, e);
+					listener.close(null);
+				}
+			}
+		});
+		return listener;
+	}
+
+	/**
+	 * Server channel accepting inbound connections
+	 */
+	class Listener implements Handler {
+
+		private final String path;
+		private final Framing framing;
+		private final int maxFrameSize;
+		private final int maxConnections;
+		private final int idleTimeout;
+		private final StreamCallback callback;
+		private final Set<Inbound> connections = new HashSet<>();
+		private ServerSocketChannel channel;
+
+		private Listener(String path, Framing framing, int maxFrameSize, int maxConnections, int idleTimeout, StreamCallback callback) {
+			this.path = path;
+			this.framing = framing;
+			this.maxFrameSize = maxFrameSize;
+			this.maxConnections = maxConnections;
+			this.idleTimeout = idleTimeout;
+			this.callback = callback;
+		}
+
+		@Override
+		public void handle(SelectionKey key) {
+			SocketChannel accepted;
+			try {
+				while ((accepted = channel.accept()) != null) {
+					if (connections.size() >= maxConnections) {
+						log.log(Level.WARNING, "Rejected inbound connection from {0}, limit of {1} connections reached",
+								new Object[] { accepted.getRemoteAddress(), Integer.valueOf(maxConnections) });
+						accepted.close();
+						continue;
+					}
+					Inbound inbound = new Inbound(this, accepted);
+					try {
+						accepted.configureBlocking(false);
+						accepted.register(selector, SelectionKey.OP_READ, inbound);
+						connections.add(inbound);
+					} catch (IOException e) {
+						accepted.close();
+					}
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Failed to accept inbound connection", e);
+			}
+		}
+
+		@Override
+		public void close(TransportException error) {
+			listeners.remove(this);
+			for (Inbound inbound : new ArrayList<>(connections))
+				inbound.close(null);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		private void expire(long now) {
+			if (idleTimeout > 0) {
+				for (Inbound inbound : new ArrayList<>(connections)) {
+					if (now - inbound.active >= idleTimeout) {
+						log.log(Level.FINE, "Closing idle inbound connection {0}", inbound.channel);
+						inbound.close(null);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Accepted connection
+	 */
+	private class Inbound implements Handler {
+
+		private final Listener listener;
+		private final SocketChannel channel;
+		private final Framing.Decoder decoder;
+		private long active = System.currentTimeMillis();
+
+		private Inbound(Listener listener, SocketChannel channel) {
+			this.listener = listener;
+			this.channel = channel;
+			this.decoder = listener.framing.decoder(listener.maxFrameSize);
+		}
+
+		@Override
+		public void handle(SelectionKey key) {
+			try {
+				int length;
+				while ((length = channel.read(receive)) > 0) {
+					active = System.currentTimeMillis();
+					receive.flip();
+					decoder.append(receive);
+					receive.clear();
+					byte[] frame;
+					while ((frame = decoder.next()) != null)
+						arrived(frame);
+				}
+				if (length < 0) {
+					byte[] frame = decoder.finish();
+					if (frame != null)
+						arrived(frame);
+					close(null);
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Closing inbound connection " + channel + ": " + e.getMessage(), e);
+				receive.clear();
+				close(null);
+			}
+		}
+
+		private void arrived(byte[] frame) {
+			try {
+				if (!listener.callback.arrived(listener.path, new ByteArrayInputStream(frame)))
+					log.log(Level.FINE, "Discarded message received on {0}", channel);
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "Failed to deliver received message", e);
+			}
+		}
+
+		@Override
+		public void close(TransportException error) {
+			listener.connections.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
@@ -4,8 +4,13 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import havis.transport.Marshaller;
 import havis.transport.Messenger;
@@ -14,10 +19,88 @@ import havis.transport.TransportException;
 import havis.transport.Transporter;
 import havis.transport.ValidationException;
 
-class TcpTransporter<T> extends StreamTransporter<T> {
+class TcpTransporter<T> extends StreamTransporter<T> implements AsyncTransporter {
+
+	/**
+	 * Framing of the messages, either "close" to close the connection after
+	 * each message (default), "length" to prefix each message with its length
+	 * or "delimiter" to append a delimiter. The connection is kept open
+	 * between messages unless framed by close.
+	 */
+	final static String FRAMING_PROPERTY = Transporter.PREFIX + "TCP.Framing";
+	/**
+	 * Delimiter appended to each message if framed by delimiter, defaults to
+	 * a line feed
+	 */
+	final static String DELIMITER_PROPERTY = Transporter.PREFIX + "TCP.Delimiter";
+	/**
+	 * Whether Nagle's algorithm is disabled
+	 */
+	final static String NO_DELAY_PROPERTY = Transporter.PREFIX + "TCP.NoDelay";
+	/**
+	 * Size of the socket send buffer in bytes
+	 */
+	final static String SEND_BUFFER_SIZE_PROPERTY = Transporter.PREFIX + "TCP.SendBufferSize";
+	/**
+	 * Size of the socket receive buffer in bytes
+	 */
+	final static String RECEIVE_BUFFER_SIZE_PROPERTY = Transporter.PREFIX + "TCP.ReceiveBufferSize";
+	/**
+	 * Maximum number of messages in flight on a persistent connection
+	 */
+	final static String MAX_IN_FLIGHT_PROPERTY = Transporter.PREFIX + "TCP.MaxInFlight";
+
+	/**
+	 * Time in milliseconds small messages are held back on a persistent
+	 * connection to be written together, zero by default
+	 */
+	final static String COALESCE_DELAY_PROPERTY = Transporter.PREFIX + "TCP.Coalesce.Delay";
+	/**
+	 * Maximum number of bytes written together, held back messages are
+	 * written as soon as they reach this size
+	 */
+	final static String COALESCE_BYTES_PROPERTY = Transporter.PREFIX + "TCP.Coalesce.Bytes";
+
+	/**
+	 * Maximum size of a received message in bytes
+	 */
+	final static String MAX_FRAME_SIZE_PROPERTY = Transporter.PREFIX + "TCP.MaxFrameSize";
+	/**
+	 * Maximum number of inbound connections when receiving
+	 */
+	final static String MAX_CONNECTIONS_PROPERTY = Transporter.PREFIX + "TCP.MaxConnections";
+	/**
+	 * Time in milliseconds after which idle inbound connections are closed,
+	 * zero by default to keep them open
+	 */
+	final static String IDLE_TIMEOUT_PROPERTY = Transporter.PREFIX + "TCP.IdleTimeout";
+
+	private final static int DEFAULT_MAX_IN_FLIGHT = 1000;
+	private final static int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	private final static int DEFAULT_MAX_CONNECTIONS = 100;
+	private final static int DEFAULT_COALESCE_BYTES = 64 * 1024;
 
 	private int timeout = 1000;
 	private URI uri;
+	private Framing framing = Framing.CLOSE;
+	private boolean noDelay = false;
+	private int sendBufferSize = 0;
+	private int receiveBufferSize = 0;
+
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int coalesceDelay = 0;
+	private int coalesceBytes = DEFAULT_COALESCE_BYTES;
+	private Semaphore inFlight;
+
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int idleTimeout = 0;
+
+	// persistent connection, null when disposed
+	private volatile TcpEngine.Connection connection;
+
+	// receiving on a separate engine, the inbound policy might block
+	private TcpEngine inbound;
 
 	@Override
 	protected String getDefaultMimeType() {
@@ -29,6 +112,8 @@ class TcpTransporter<T> extends StreamTransporter<T> {
 		if (uri == null)
 			throw new ValidationException("URI must not be null");
 		this.uri = uri;
+		String framing = null;
+		String delimiter = null;
 		if (properties != null) {
 			for (Entry<String, String> entry : properties.entrySet()) {
 				String key = entry.getKey();
@@ -43,12 +128,59 @@ class TcpTransporter<T> extends StreamTransporter<T> {
 							throw new ValidationException("Invalid timeout value '" + entry.getValue() + "'", e);
 						}
 						break;
+					case FRAMING_PROPERTY:
+						framing = entry.getValue();
+						break;
+					case DELIMITER_PROPERTY:
+						delimiter = entry.getValue();
+						break;
+					case NO_DELAY_PROPERTY:
+						noDelay = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
+					case SEND_BUFFER_SIZE_PROPERTY:
+						sendBufferSize = parseSize(entry.getValue(), "send buffer size");
+						break;
+					case RECEIVE_BUFFER_SIZE_PROPERTY:
+						receiveBufferSize = parseSize(entry.getValue(), "receive buffer size");
+						break;
+					case MAX_IN_FLIGHT_PROPERTY:
+						maxInFlight = parseSize(entry.getValue(), "max in flight");
+						break;
+					case COALESCE_DELAY_PROPERTY:
+						try {
+							coalesceDelay = Integer.parseInt(entry.getValue());
+							if (coalesceDelay < 0)
+								throw new ValidationException("Invalid coalesce delay value '" + entry.getValue() + "'");
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid coalesce delay value '" + entry.getValue() + "'", e);
+						}
+						break;
+					case COALESCE_BYTES_PROPERTY:
+						coalesceBytes = parseSize(entry.getValue(), "coalesce bytes");
+						break;
+					case MAX_FRAME_SIZE_PROPERTY:
+						maxFrameSize = parseSize(entry.getValue(), "max frame size");
+						break;
+					case MAX_CONNECTIONS_PROPERTY:
+						maxConnections = parseSize(entry.getValue(), "max connections");
+						break;
+					case IDLE_TIMEOUT_PROPERTY:
+						try {
+							idleTimeout = Integer.parseInt(entry.getValue());
+							if (idleTimeout < 0)
+								throw new ValidationException("Invalid idle timeout value '" + entry.getValue() + "'");
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid idle timeout value '" + entry.getValue() + "'", e);
+						}
+						break;
 					default:
 						throw new ValidationException("Unknown property key '" + key + "'");
 					}
 				}
 			}
 		}
+		if (framing != null)
+			this.framing = Framing.parse(framing, delimiter);
 
 		if (uri.getHost() == null) {
 			throw new ValidationException("No host specified");
@@ -56,17 +188,140 @@ class TcpTransporter<T> extends StreamTransporter<T> {
 		if (uri.getPort() == -1) {
 			throw new ValidationException("No port specified");
 		}
+
+		if (this.framing.isPersistent() && connection == null) {
+			try {
+				connection = TcpEngine.acquire().connection(uri.getHost(), uri.getPort(), timeout, noDelay, sendBufferSize, receiveBufferSize,
+						coalesceDelay, coalesceBytes);
+			} catch (IOException e) {
+				throw new ValidationException("Failed to start TCP engine: " + e.getMessage(), e);
+			}
+			inFlight = new Semaphore(maxInFlight);
+		}
+	}
+
+	private static int parseSize(String value, String name) throws ValidationException {
+		try {
+			int result = Integer.parseInt(value);
+			if (result < 1)
+				throw new ValidationException("Value '" + value + "' for " + name + " must be greater than zero");
+			return result;
+		} catch (NumberFormatException e) {
+			throw new ValidationException("Invalid " + name + " value '" + value + "'", e);
+		}
+	}
+
+	private SocketChannel connect() throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			Socket socket = channel.socket();
+			socket.setTcpNoDelay(noDelay);
+			if (sendBufferSize > 0)
+				socket.setSendBufferSize(sendBufferSize);
+			if (receiveBufferSize > 0)
+				socket.setReceiveBufferSize(receiveBufferSize);
+			socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), timeout);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the framed payload to the persistent connection and wait until
+	 * the frame was written
+	 */
+	private void write(ByteBuffer payload) throws TransportException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<TransportException> error = new AtomicReference<>();
+		write(payload, new SendCallback() {
+			@Override
+			public void completed() {
+				done.countDown();
+			}
+
+			@Override
+			public void failed(TransportException e) {
+				error.set(e);
+				done.countDown();
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("TCP transport was interrupted", e);
+		}
+		if (error.get() != null)
+			throw error.get();
+	}
+
+	private void write(ByteBuffer payload, final SendCallback callback) throws TransportException {
+		TcpEngine.Connection connection = this.connection;
+		if (connection == null)
+			throw new TransportException("Transporter has been disposed");
+		try {
+			// limit the frames in flight, the caller waits for a free slot
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("TCP transport was interrupted", e);
+		}
+		connection.send(framing.frame(payload), new SendCallback() {
+			@Override
+			public void completed() {
+				inFlight.release();
+				callback.completed();
+			}
+
+			@Override
+			public void failed(TransportException error) {
+				inFlight.release();
+				callback.failed(error);
+			}
+		});
+	}
+
+	@Override
+	public boolean isAsync() {
+		return framing.isPersistent();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, SendCallback callback) {
+		try {
+			if (path != null && path.length() > 0)
+				throw new TransportException("Transporter does not support paths");
+			RawPayload payload = RawPayload.of(message);
+			if (payload != null) {
+				write(payload.getData(), callback);
+			} else {
+				// the frame is written later, so the message has to be copied
+				try (MessageBuffer buffer = MessageBuffer.get()) {
+					getMarshaller().marshal((T) message, buffer);
+					write(ByteBuffer.wrap(buffer.toByteArray()), callback);
+				}
+			}
+		} catch (TransportException e) {
+			callback.failed(e);
+		}
 	}
 
 	@Override
 	protected void send(Marshaller<T> marshaller, T message) throws TransportException {
+		if (framing.isPersistent()) {
+			try (MessageBuffer buffer = MessageBuffer.get()) {
+				marshaller.marshal(message, buffer);
+				// waits for the frame to be written before the buffer is reused
+				write(ByteBuffer.wrap(buffer.array(), 0, buffer.size()));
+			}
+			return;
+		}
 		try {
-			Socket client = new Socket();
-			client.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), timeout);
-			try {
-				marshaller.marshal(message, client.getOutputStream());
-			} finally {
-				client.close();
+			try (SocketChannel channel = connect()) {
+				marshaller.marshal(message, channel.socket().getOutputStream());
 			}
 		} catch (IOException e) {
 			throw new TransportConnectionException("Failed to connect to URI '" + uri + "'", e);
@@ -75,7 +330,68 @@ class TcpTransporter<T> extends StreamTransporter<T> {
 		}
 	}
 
+	@Override
+	protected void sendRaw(RawPayload payload) throws TransportException {
+		if (framing.isPersistent()) {
+			write(payload.getData());
+			return;
+		}
+		// write the buffer directly to the channel
+		try (SocketChannel channel = connect()) {
+			ByteBuffer data = payload.getData();
+			while (data.hasRemaining())
+				channel.write(data);
+		} catch (IOException e) {
+			throw new TransportConnectionException("Failed to connect to URI '" + uri + "'", e);
+		}
+	}
+
+	/**
+	 * Listens on the host and port of the URI, messages are received with the
+	 * same framing as sent
+	 */
+	@Override
+	protected void subscribe(String path, StreamCallback callback) throws TransportException {
+		if (path != null && path.length() > 0)
+			throw new TransportException("Transporter does not support paths");
+		try {
+			inbound = TcpEngine.open();
+			inbound.listen(new InetSocketAddress(uri.getHost(), uri.getPort()), path, framing, maxFrameSize, maxConnections, idleTimeout,
+					receiveBufferSize, callback);
+		} catch (IOException e) {
+			if (inbound != null) {
+				inbound.stop();
+				inbound = null;
+			}
+			throw new TransportException("Failed to listen on '" + uri.getHost() + ":" + uri.getPort() + "': " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	protected void unsubscribe(String path) throws TransportException {
+		if (inbound != null) {
+			// closes the listener and its connections
+			inbound.stop();
+			inbound = null;
+		}
+	}
+
 	@Override
 	public void dispose() {
+		super.dispose();
+		if (inbound != null) {
+			inbound.stop();
+			inbound = null;
+		}
+		TcpEngine.Connection connection;
+		synchronized (this) {
+			connection = this.connection;
+			this.connection = null;
+		}
+		if (connection != null) {
+			// sends racing with dispose fail on the disposed connection
+			connection.dispose();
+			TcpEngine.release();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package havis.transport.common;
+
+import havis.transport.TransportConnectionException;
+
+import java.net.HttpURLConnection;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Connection exception for requests rejected by the server due to rate
+ * limiting, e.g. HTTP 429 or 503
+ */
+class ThrottledException extends TransportConnectionException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * HTTP status of requests rejected due to rate limiting
+	 */
+	final static int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private final long retryAfter;
+
+	/**
+	 * Creates a new throttled exception
+	 * 
+	 * @param message
+	 *            the message
+	 * @param retryAfter
+	 *            the time in milliseconds to wait before retrying or -1 if
+	 *            the server didn't specify it
+	 */
+	ThrottledException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return the time in milliseconds to wait before retrying or -1 if the
+	 *         server didn't specify it
+	 */
+	long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @param code
+	 *            the HTTP status code
+	 * @return whether the server throttles the client, i.e. HTTP 429 or 503
+	 */
+	static boolean isThrottled(int code) {
+		return code == HTTP_TOO_MANY_REQUESTS || code == HttpURLConnection.HTTP_UNAVAILABLE;
+	}
+
+	/**
+	 * Parse the value of a Retry-After header
+	 * 
+	 * @param value
+	 *            the value, either delay seconds or a HTTP date
+	 * @return the delay in milliseconds or -1 if the value is missing or
+	 *         invalid
+	 */
+	static long parseRetryAfter(String value) {
+		if (value == null || (value = value.trim()).isEmpty())
+			return -1;
+		try {
+			long seconds = Long.parseLong(value);
+			return seconds >= 0 ? seconds * 1000 : -1;
+		} catch (NumberFormatException e) {
+			// not delay seconds
+		}
+		try {
+			long delay = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis();
+			return delay > 0 ? delay : 0;
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
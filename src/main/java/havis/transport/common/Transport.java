@@ -67,15 +67,28 @@ public class Transport {
 		});
 
 		Connector.createFactory(new Connector() {
+
+			private volatile TransformerFactory factory;
+			private volatile boolean loaded;
+
 			@SuppressWarnings("unchecked")
 			@Override
 			public <S> S newInstance(Class<S> clazz, String name) throws ValidationException {
-				log.info("Instantiating transform factory");
-				ServiceLoader<TransformerFactory> adapters = ServiceLoader.load(TransformerFactory.class);
-				for (TransformerFactory adapter : adapters) {
-					return (S) adapter.newInstance();
+				if (!loaded) {
+					synchronized (this) {
+						if (!loaded) {
+							// the service loader scans the class path, do it only once
+							log.info("Instantiating transform factory");
+							for (TransformerFactory adapter : ServiceLoader.load(TransformerFactory.class)) {
+								factory = adapter;
+								break;
+							}
+							loaded = true;
+						}
+					}
 				}
-				return null;
+				TransformerFactory adapter = factory;
+				return adapter != null ? (S) adapter.newInstance() : null;
 			}
 
 			@Override
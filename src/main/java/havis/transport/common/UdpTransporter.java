@@ -6,22 +6,109 @@ import havis.transport.TransportException;
 import havis.transport.Transporter;
 import havis.transport.ValidationException;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.OutputStream;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Transporter sending datagrams to the host of the URI, which might be a
+ * multicast group. When receiving, datagrams are received on the port of the
+ * URI and the multicast group is joined.
+ */
 class UdpTransporter<T> extends StreamTransporter<T> {
 
-	private DatagramSocket socket;
+	/**
+	 * Time to live of multicast datagrams
+	 */
+	final static String TTL_PROPERTY = Transporter.PREFIX + "UDP.TTL";
+	/**
+	 * Network interface for multicast, either its name or one of its
+	 * addresses
+	 */
+	final static String INTERFACE_PROPERTY = Transporter.PREFIX + "UDP.Interface";
+	/**
+	 * Whether multicast datagrams are looped back to the local host, enabled
+	 * by default
+	 */
+	final static String LOOPBACK_PROPERTY = Transporter.PREFIX + "UDP.Loopback";
+	/**
+	 * Whether messages are split into fragments of at most the MTU, the
+	 * receiver has to enable fragmentation as well
+	 */
+	final static String FRAGMENTATION_PROPERTY = Transporter.PREFIX + "UDP.Fragmentation";
+	/**
+	 * Maximum size of a datagram in bytes if fragmentation is enabled,
+	 * including the fragment header
+	 */
+	final static String MTU_PROPERTY = Transporter.PREFIX + "UDP.MTU";
+	/**
+	 * Maximum number of bytes of incomplete messages held for reassembly
+	 */
+	final static String REASSEMBLY_BYTES_PROPERTY = Transporter.PREFIX + "UDP.Reassembly.Bytes";
+	/**
+	 * Maximum number of incomplete messages held for reassembly
+	 */
+	final static String REASSEMBLY_MESSAGES_PROPERTY = Transporter.PREFIX + "UDP.Reassembly.Messages";
+	/**
+	 * Time in milliseconds to wait for the missing fragments of a message
+	 */
+	final static String REASSEMBLY_TIMEOUT_PROPERTY = Transporter.PREFIX + "UDP.Reassembly.Timeout";
+
+	private final static Logger log = Logger.getLogger(UdpTransporter.class.getName());
+
+	// maximum payload of an IPv4 datagram
+	private final static int MAX_DATAGRAM_SIZE = 65507;
+	// Ethernet frame without IP and UDP headers
+	private final static int DEFAULT_MTU = 1472;
+	private final static int DEFAULT_REASSEMBLY_BYTES = 16 * 1024 * 1024;
+	private final static int DEFAULT_REASSEMBLY_MESSAGES = 1024;
+	private final static int DEFAULT_REASSEMBLY_TIMEOUT = 5000;
+	private final static AtomicInteger count = new AtomicInteger();
+
+	private DatagramChannel channel;
 	private InetAddress address;
 	private int port;
+	private int ttl = -1;
+	private NetworkInterface networkInterface;
+	private Boolean loopback;
+	private boolean fragmentation = false;
+	private int mtu = DEFAULT_MTU;
+	private int reassemblyBytes = DEFAULT_REASSEMBLY_BYTES;
+	private int reassemblyMessages = DEFAULT_REASSEMBLY_MESSAGES;
+	private int reassemblyTimeout = DEFAULT_REASSEMBLY_TIMEOUT;
+	private ByteBuffer header;
+	private final ByteBuffer[] fragment = new ByteBuffer[2];
+	private int id = new Random().nextInt();
+
+	private DatagramChannel receiver;
+
+	// marshalling target reused for all messages
+	private final Lock lock = new ReentrantLock();
+	private ByteBuffer buffer;
+	private OutputStream stream;
 
 	@Override
 	protected String getDefaultMimeType() {
@@ -37,6 +124,38 @@ class UdpTransporter<T> extends StreamTransporter<T> {
 				String key = entry.getKey();
 				if (key != null && key.startsWith(Transporter.PREFIX + "UDP")) {
 					switch (key) {
+					case TTL_PROPERTY:
+						try {
+							ttl = Integer.parseInt(entry.getValue());
+						} catch (NumberFormatException e) {
+							throw new ValidationException("Invalid TTL value '" + entry.getValue() + "'", e);
+						}
+						if (ttl < 0 || ttl > 255)
+							throw new ValidationException("Invalid TTL value '" + entry.getValue() + "'");
+						break;
+					case INTERFACE_PROPERTY:
+						networkInterface = parseInterface(entry.getValue());
+						break;
+					case LOOPBACK_PROPERTY:
+						loopback = Boolean.valueOf(Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue()));
+						break;
+					case FRAGMENTATION_PROPERTY:
+						fragmentation = Boolean.TRUE.toString().equalsIgnoreCase(entry.getValue());
+						break;
+					case MTU_PROPERTY:
+						mtu = parseInt(entry.getValue(), "MTU");
+						if (mtu <= Fragmentation.HEADER_SIZE || mtu > MAX_DATAGRAM_SIZE)
+							throw new ValidationException("MTU must be between " + (Fragmentation.HEADER_SIZE + 1) + " and " + MAX_DATAGRAM_SIZE);
+						break;
+					case REASSEMBLY_BYTES_PROPERTY:
+						reassemblyBytes = parseInt(entry.getValue(), "reassembly bytes");
+						break;
+					case REASSEMBLY_MESSAGES_PROPERTY:
+						reassemblyMessages = parseInt(entry.getValue(), "reassembly messages");
+						break;
+					case REASSEMBLY_TIMEOUT_PROPERTY:
+						reassemblyTimeout = parseInt(entry.getValue(), "reassembly timeout");
+						break;
 					default:
 						throw new ValidationException("Unknown property key '" + key + "'");
 					}
@@ -59,19 +178,263 @@ class UdpTransporter<T> extends StreamTransporter<T> {
 		}
 
 		try {
-			socket = new DatagramSocket();
-		} catch (SocketException e) {
-			throw new ValidationException("Failed to create datagram socket " + e.getMessage());
+			// connected once, so the destination isn't checked for each datagram
+			channel = open();
+			if (address.isMulticastAddress()) {
+				if (ttl > -1)
+					channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.valueOf(ttl));
+				if (networkInterface != null)
+					channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				if (loopback != null)
+					channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, loopback);
+			}
+			channel.connect(new InetSocketAddress(address, port));
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+					// ignore
+				}
+				channel = null;
+			}
+			throw new ValidationException("Failed to create datagram channel " + e.getMessage());
+		}
+
+		header = ByteBuffer.allocateDirect(Fragmentation.HEADER_SIZE);
+		buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+		stream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				try {
+					buffer.put((byte) b);
+				} catch (BufferOverflowException e) {
+					throw new IOException("Message exceeds maximum datagram size of " + MAX_DATAGRAM_SIZE + " bytes");
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					buffer.put(b, off, len);
+				} catch (BufferOverflowException e) {
+					throw new IOException("Message exceeds maximum datagram size of " + MAX_DATAGRAM_SIZE + " bytes");
+				}
+			}
+		};
+	}
+
+	private static int parseInt(String value, String name) throws ValidationException {
+		try {
+			int result = Integer.parseInt(value);
+			if (result < 1)
+				throw new ValidationException("Value '" + value + "' for " + name + " must be greater than zero");
+			return result;
+		} catch (NumberFormatException e) {
+			throw new ValidationException("Invalid " + name + " value '" + value + "'", e);
+		}
+	}
+
+	private DatagramChannel open() throws IOException {
+		// the protocol family has to match the multicast group
+		return DatagramChannel.open(address instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+	}
+
+	private static NetworkInterface parseInterface(String value) throws ValidationException {
+		try {
+			NetworkInterface result = value != null ? NetworkInterface.getByName(value.trim()) : null;
+			if (result == null && value != null)
+				result = NetworkInterface.getByInetAddress(InetAddress.getByName(value.trim()));
+			if (result == null)
+				throw new ValidationException("Unknown network interface '" + value + "'");
+			return result;
+		} catch (IOException e) {
+			throw new ValidationException("Unknown network interface '" + value + "': " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the interface to join multicast groups on, the configured one
+	 *         or the first one supporting multicast
+	 */
+	private NetworkInterface getMulticastInterface() throws IOException {
+		if (networkInterface != null)
+			return networkInterface;
+		NetworkInterface loopback = null;
+		for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (candidate.isUp() && candidate.supportsMulticast()) {
+				if (!candidate.isLoopback())
+					return candidate;
+				loopback = candidate;
+			}
+		}
+		if (loopback == null)
+			throw new IOException("No network interface supports multicast");
+		return loopback;
+	}
+
+	@Override
+	protected void subscribe(final String path, final StreamCallback callback) throws TransportException {
+		if (path != null && path.length() > 0)
+			throw new TransportException("Transporter does not support paths");
+		final DatagramChannel receiver;
+		try {
+			receiver = open();
+		} catch (IOException e) {
+			throw new TransportException("Failed to create datagram channel: " + e.getMessage(), e);
+		}
+		try {
+			receiver.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+			if (fragmentation)
+				// the fragments of a message arrive in a burst, the system
+				// caps the size to its maximum
+				receiver.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(reassemblyBytes));
+			if (address.isMulticastAddress()) {
+				receiver.bind(new InetSocketAddress(port));
+				receiver.join(address, getMulticastInterface());
+			} else {
+				receiver.bind(new InetSocketAddress(address, port));
+			}
+		} catch (IOException e) {
+			try {
+				receiver.close();
+			} catch (IOException ignore) {
+				// ignore
+			}
+			throw new TransportException("Failed to receive on '" + address.getHostAddress() + ":" + port + "': " + e.getMessage(), e);
+		}
+		this.receiver = receiver;
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer data = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+				Fragmentation.Reassembly reassembly = fragmentation ? new Fragmentation.Reassembly(reassemblyBytes, reassemblyMessages, reassemblyTimeout) : null;
+				while (receiver.isOpen()) {
+					try {
+						data.clear();
+						SocketAddress source = receiver.receive(data);
+						data.flip();
+						byte[] bytes;
+						if (reassembly != null) {
+							if ((bytes = reassembly.add(source, data)) == null)
+								continue;
+						} else {
+							bytes = new byte[data.remaining()];
+							data.get(bytes);
+						}
+						if (!callback.arrived(path, new ByteArrayInputStream(bytes)))
+							log.log(Level.FINE, "Discarded datagram received on port {0}", Integer.valueOf(port));
+					} catch (ClosedChannelException e) {
+						// unsubscribed
+					} catch (IOException e) {
+						log.log(Level.FINE, "Failed to receive datagram", e);
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE, "Failed to deliver received datagram", e);
+					}
+				}
+			}
+		}, "Transport-UDP-Receiver-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	protected void unsubscribe(String path) throws TransportException {
+		closeReceiver();
+	}
+
+	private void closeReceiver() {
+		if (receiver != null) {
+			try {
+				// stops the receiving thread
+				receiver.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			receiver = null;
 		}
 	}
 
 	@Override
 	protected void send(Marshaller<T> marshaller, T message) throws TransportException {
+		if (fragmentation) {
+			try (MessageBuffer buffer = MessageBuffer.get()) {
+				marshaller.marshal(message, buffer);
+				fragment(ByteBuffer.wrap(buffer.array(), 0, buffer.size()));
+			}
+			return;
+		}
+		lock.lock();
+		try {
+			buffer.clear();
+			marshaller.marshal(message, stream);
+			buffer.flip();
+			write(buffer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void sendRaw(RawPayload payload) throws TransportException {
+		if (fragmentation) {
+			fragment(payload.getData());
+			return;
+		}
+		write(payload.getData());
+	}
+
+	/**
+	 * Send the data in fragments of at most the MTU
+	 */
+	private void fragment(ByteBuffer data) throws TransportException {
+		int size = mtu - Fragmentation.HEADER_SIZE;
+		int count = Math.max(1, (data.remaining() + size - 1) / size);
+		if (count > Fragmentation.MAX_FRAGMENTS)
+			throw new TransportException("Message exceeds maximum number of " + Fragmentation.MAX_FRAGMENTS + " fragments");
+		int end = data.limit();
+		lock.lock();
+		try {
+			int id = this.id++;
+			for (int index = 0; index < count; index++) {
+				header.clear();
+				Fragmentation.header(header, id, index, count);
+				header.flip();
+				data.limit(Math.min(end, data.position() + size));
+				fragment[0] = header;
+				fragment[1] = data;
+				write(fragment);
+				data.position(data.limit());
+				data.limit(end);
+			}
+		} finally {
+			fragment[1] = null;
+			lock.unlock();
+		}
+	}
+
+	private void write(ByteBuffer data) throws TransportException {
 		try {
-			try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-				marshaller.marshal(message,stream);
-				byte[] bytes = stream.toByteArray();
-				socket.send(new DatagramPacket(bytes, bytes.length, address, port));
+			try {
+				channel.write(data);
+			} catch (PortUnreachableException e) {
+				// reported for an earlier datagram, datagrams are not
+				// acknowledged anyway
+				channel.write(data);
+			}
+		} catch (IOException e) {
+			throw new TransportException("UDP transport failed: " + e.getMessage(), e);
+		}
+	}
+
+	private void write(ByteBuffer[] data) throws TransportException {
+		try {
+			try {
+				// gathered into one datagram
+				channel.write(data);
+			} catch (PortUnreachableException e) {
+				channel.write(data);
 			}
 		} catch (IOException e) {
 			throw new TransportException("UDP transport failed: " + e.getMessage(), e);
@@ -80,5 +443,14 @@ class UdpTransporter<T> extends StreamTransporter<T> {
 
 	@Override
 	public void dispose() {
+		super.dispose();
+		closeReceiver();
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -29,12 +29,24 @@ public class Utils {
 
 	private final static Logger log = Logger.getLogger(Messenger.class.getName());
 
+	// Paho MQTT 5 is an optional import, its schemes are only provided if the
+	// client is available
+	private final static boolean MQTT5_AVAILABLE = isAvailable("org.eclipse.paho.mqttv5.client.MqttAsyncClient");
+
 	private final static Map<String, Class<?>> transporters = new LinkedHashMap<>();
 	static {
 		transporters.put("http", HttpTransporter.class);
 		transporters.put("https", HttpTransporter.class);
+		transporters.put("h2c", Http2Transporter.class);
+		transporters.put("h2", Http2Transporter.class);
 		transporters.put("mqtt", MqttTransporter.class);
 		transporters.put("mqtts", MqttTransporter.class);
+		if (MQTT5_AVAILABLE) {
+			transporters.put("mqtt5", Mqtt5Transporter.class);
+			transporters.put("mqtts5", Mqtt5Transporter.class);
+		} else {
+			log.fine("MQTT 5 client is not available, transporters 'mqtt5' and 'mqtts5' are not provided");
+		}
 		transporters.put("tcp", TcpTransporter.class);
 		transporters.put("udp", UdpTransporter.class);
 		transporters.put("jdbc", JdbcTransporter.class);
@@ -44,6 +56,15 @@ public class Utils {
 	private Utils() {
 	}
 
+	private static boolean isAvailable(String className) {
+		try {
+			Class.forName(className, false, Utils.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
 	/**
 	 * Retrieve the query parameters as a {@link Map} from the specified
 	 * {@link URI}
@@ -128,9 +149,17 @@ public class Utils {
 			case "http":
 			case "https":
 				return new HttpTransporter<T>();
+			case "h2c":
+			case "h2":
+				return new Http2Transporter<T>();
 			case "mqtt":
 			case "mqtts":
 				return new MqttTransporter<T>();
+			case "mqtt5":
+			case "mqtts5":
+				if (!MQTT5_AVAILABLE)
+					throw new ValidationException("MQTT 5 client is not available for transporter '" + transporter + "'");
+				return new Mqtt5Transporter<T>();
 			case "tcp":
 				return new TcpTransporter<T>();
 			case "udp":
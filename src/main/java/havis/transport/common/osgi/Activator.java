@@ -15,9 +15,12 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -47,6 +50,85 @@ public class Activator implements BundleActivator {
 	private final static Logger log = Logger.getLogger(Activator.class.getName());
 	private ServiceTracker<ClassLoader, ClassLoader> contextTracker;
 	private final List<ServiceRegistration<?>> registrations = new ArrayList<>();
+	private final Map<Class<?>, Registry<?>> registries = new HashMap<>();
+
+	/**
+	 * Registry of services indexed by their name property, kept up to date by
+	 * a service tracker to avoid querying the service registry on each lookup
+	 */
+	private static class Registry<S> extends ServiceTracker<S, ServiceReference<S>> {
+
+		private final Map<String, ServiceReference<S>> references = new ConcurrentHashMap<>();
+
+		Registry(BundleContext context, Class<S> clazz) {
+			super(context, clazz, null);
+		}
+
+		@Override
+		public ServiceReference<S> addingService(ServiceReference<S> reference) {
+			// track the reference only, services are retrieved on demand
+			index(reference);
+			return reference;
+		}
+
+		@Override
+		public void modifiedService(ServiceReference<S> reference, ServiceReference<S> service) {
+			reindex();
+		}
+
+		@Override
+		public void removedService(ServiceReference<S> reference, ServiceReference<S> service) {
+			Object name = reference.getProperty("name");
+			if (name instanceof String && reference.equals(references.get(name))) {
+				references.remove(name);
+				// another service might provide the same name
+				reindex();
+			}
+		}
+
+		private void index(ServiceReference<S> reference) {
+			Object name = reference.getProperty("name");
+			if (name instanceof String) {
+				synchronized (references) {
+					ServiceReference<S> current = references.get(name);
+					// prefer the service with the highest ranking
+					if (current == null || reference.compareTo(current) > 0)
+						references.put((String) name, reference);
+				}
+			}
+		}
+
+		private void reindex() {
+			synchronized (references) {
+				references.clear();
+				ServiceReference<S>[] tracked = getServiceReferences();
+				if (tracked != null)
+					for (ServiceReference<S> reference : tracked)
+						index(reference);
+			}
+		}
+
+		ServiceReference<S> get(String name) {
+			return name != null ? references.get(name) : null;
+		}
+
+		List<String> getTypes() {
+			return new ArrayList<>(references.keySet());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <S> Registry<S> getRegistry(BundleContext context, Class<S> clazz) {
+		synchronized (registries) {
+			Registry<S> registry = (Registry<S>) registries.get(clazz);
+			if (registry == null) {
+				registry = new Registry<>(context, clazz);
+				registry.open();
+				registries.put(clazz, registry);
+			}
+			return registry;
+		}
+	}
 
 	@Override
 	public void start(final BundleContext context) throws Exception {
@@ -156,33 +238,19 @@ public class Activator implements BundleActivator {
 
 			@Override
 			public <S> S newInstance(Class<S> clazz, String type) throws ValidationException {
-				try {
-					for (ServiceReference<S> reference : context.getServiceReferences(clazz, "(name=" + type + ")")) {
-						ServiceObjects<S> objects = context.getServiceObjects(reference);
-						if (objects != null) {
-							return objects.getService();
-						}
+				ServiceReference<S> reference = getRegistry(context, clazz).get(type);
+				if (reference != null) {
+					ServiceObjects<S> objects = context.getServiceObjects(reference);
+					if (objects != null) {
+						return objects.getService();
 					}
-					return null;
-				} catch (InvalidSyntaxException e) {
-					throw new ValidationException(e.getMessage());
 				}
+				return null;
 			}
 
 			@Override
 			public <S> List<String> getTypes(Class<S> clazz) throws ValidationException {
-				List<String> types = new ArrayList<>();
-				try {
-					for (ServiceReference<S> reference : context.getServiceReferences(clazz, null)) {
-						Object type = reference.getProperty("name");
-						if (type instanceof String) {
-							types.add((String) type);
-						}
-					}
-				} catch (InvalidSyntaxException e) {
-					throw new ValidationException(e.getMessage());
-				}
-				return types;
+				return getRegistry(context, clazz).getTypes();
 			}
 
 			@Override
@@ -248,6 +316,11 @@ public class Activator implements BundleActivator {
 	@Override
 	public void stop(BundleContext context) throws Exception {
 		Connector.clearFactory();
+		synchronized (registries) {
+			for (Registry<?> registry : registries.values())
+				registry.close();
+			registries.clear();
+		}
 		for (ServiceRegistration<?> registration : registrations)
 			registration.unregister();
 		registrations.clear();
@@ -4,6 +4,7 @@ import havis.net.rest.shared.Resource;
 import havis.transport.Subscriber;
 import havis.transport.SubscriberManager;
 import havis.transport.ValidationException;
+import havis.transport.common.CommonSubscriberManager;
 import havis.transport.common.Environment;
 import havis.transport.common.SubscriberConfigManager;
 import havis.transport.common.SubscriberConfiguration;
@@ -128,9 +129,7 @@ public class SubscriberManagerService extends Resource {
 			throw new ValidationException("Failed to upload trust cert: " + e.getMessage(), e);
 		}
 
-		Subscriber sub = subscriberManager.get(id);
-		if (sub != null)
-			subscriberManager.update(sub);
+		updateCertificates(id);
 	}
 
 	@GET
@@ -148,6 +147,7 @@ public class SubscriberManagerService extends Resource {
 		File key = Paths.get(Environment.CERT_FOLDER, id, Environment.TRUST_FILE_NAME).toFile();
 		if (key.exists()) {
 			key.delete();
+			updateCertificates(id);
 		}
 	}
 
@@ -187,10 +187,7 @@ public class SubscriberManagerService extends Resource {
 				newKs.store(fop, Environment.KEYSTORE_PASSWD.toCharArray());
 			fop.close();
 
-			Subscriber sub = subscriberManager.get(id);
-			if (sub != null) {
-				subscriberManager.update(sub);
-			}
+			updateCertificates(id);
 
 		} catch (Exception e) {
 			log.log(Level.SEVERE, "Failed to upload key store", e);
@@ -214,6 +211,18 @@ public class SubscriberManagerService extends Resource {
 		File key = Paths.get(Environment.CERT_FOLDER, id, Environment.KEYSTORE_FILE_NAME).toFile();
 		if (key.exists()) {
 			key.delete();
+			updateCertificates(id);
+		}
+	}
+
+	private void updateCertificates(String id) throws ValidationException {
+		if (subscriberManager instanceof CommonSubscriberManager) {
+			// keep the messenger, only the socket factory changes
+			((CommonSubscriberManager) subscriberManager).updateCertificates(id);
+		} else {
+			Subscriber sub = subscriberManager.get(id);
+			if (sub != null)
+				subscriberManager.update(sub);
 		}
 	}
 
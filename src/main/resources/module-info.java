@@ -3,9 +3,12 @@ module havis.transport.common {
     requires iot.device.client;
     requires jackson.core;
     requires java.logging;
+    requires java.net.http;
     requires java.sql;
     requires jaxb.api;
+    requires jdk.httpserver;
     requires paho.client;
+    requires paho.mqttv5.client;
     requires resteasy.jaxrs;
     requires supercsv;
     requires havis.net.rest.shared;
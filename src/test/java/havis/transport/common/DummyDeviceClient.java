@@ -0,0 +1,82 @@
+package havis.transport.common;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+/**
+ * Azure device client which keeps events pending until the test reports their
+ * status. Like the SDK client, events can only be sent while it is open.
+ */
+class DummyDeviceClient implements AzureTransporter.Client {
+
+	/**
+	 * Events sent with one call, waiting for their status
+	 */
+	static class Send {
+		final List<Message> messages;
+		final Thread thread = Thread.currentThread();
+		private final IotHubEventCallback callback;
+		private final Object context;
+
+		Send(List<Message> messages, IotHubEventCallback callback, Object context) {
+			this.messages = messages;
+			this.callback = callback;
+			this.context = context;
+		}
+
+		void complete(IotHubStatusCode status) {
+			callback.execute(status, context);
+		}
+	}
+
+	final BlockingQueue<Send> sends = new LinkedBlockingQueue<>();
+	private final CountDownLatch opening;
+	volatile boolean open;
+	volatile boolean closed;
+
+	/**
+	 * @param opening
+	 *            latch to wait for while opening or null
+	 */
+	DummyDeviceClient(CountDownLatch opening) {
+		this.opening = opening;
+	}
+
+	@Override
+	public void open() throws IOException {
+		if (opening != null) {
+			try {
+				opening.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+		open = true;
+	}
+
+	@Override
+	public void closeNow() throws IOException {
+		open = false;
+		closed = true;
+	}
+
+	@Override
+	public void sendEventAsync(Message message, IotHubEventCallback callback, Object context) {
+		sendEventBatchAsync(Collections.singletonList(message), callback, context);
+	}
+
+	@Override
+	public void sendEventBatchAsync(List<Message> messages, IotHubEventCallback callback, Object context) {
+		if (!open)
+			throw new IllegalStateException("Client is not open");
+		sends.add(new Send(messages, callback, context));
+	}
+}
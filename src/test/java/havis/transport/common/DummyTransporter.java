@@ -0,0 +1,86 @@
+package havis.transport.common;
+
+import havis.transport.Callback;
+import havis.transport.TransportException;
+import havis.transport.Transporter;
+import havis.transport.ValidationException;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.net.SocketFactory;
+
+/**
+ * Asynchronous transporter which keeps sends pending until the test reports
+ * their outcome
+ */
+public class DummyTransporter<T> implements Transporter<T>, AsyncTransporter {
+
+	/**
+	 * Send waiting for its outcome
+	 */
+	static class Send {
+		final Object message;
+		final SendCallback callback;
+
+		Send(Object message, SendCallback callback) {
+			this.message = message;
+			this.callback = callback;
+		}
+	}
+
+	static final BlockingQueue<Send> sends = new LinkedBlockingQueue<>();
+
+	/**
+	 * Socket factory of the last transporter it was set on
+	 */
+	static volatile SocketFactory socketFactory;
+
+	@Override
+	public void init(Class<T> clazz, URI uri, Map<String, String> properties) throws ValidationException {
+	}
+
+	@Override
+	public boolean supportsSocketFactory() {
+		return true;
+	}
+
+	@Override
+	public void setSocketFactory(SocketFactory socketFactory) throws TransportException {
+		DummyTransporter.socketFactory = socketFactory;
+	}
+
+	@Override
+	public void send(Object message) throws TransportException {
+		throw new TransportException("Only asynchronous sends are supported");
+	}
+
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties) throws TransportException {
+		throw new TransportException("Only asynchronous sends are supported");
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
+
+	@Override
+	public void send(Object message, String name, String path, Map<String, String> properties, SendCallback callback) {
+		sends.add(new Send(message, callback));
+	}
+
+	@Override
+	public void addPath(String path, Callback callback) throws TransportException {
+	}
+
+	@Override
+	public void removePath(String path, Callback callback) throws TransportException {
+	}
+
+	@Override
+	public void dispose() {
+	}
+}
@@ -0,0 +1,273 @@
+package havis.transport.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Minimal MQTT 3.1.1 broker, published messages are passed on with QoS 0.
+ * Each client with matching subscriptions gets one copy, each shared
+ * subscription group, i.e. $share/group/filter, passes one copy to one of its
+ * members in turn. Acknowledgements of published messages can be held back.
+ */
+class MqttBroker implements Closeable {
+
+	/**
+	 * Message published by a client
+	 */
+	static class Message {
+		final String clientId;
+		final String topic;
+		final String payload;
+		final int qos;
+
+		Message(String clientId, String topic, String payload, int qos) {
+			this.clientId = clientId;
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final List<String> filters = new CopyOnWriteArrayList<>();
+		private volatile String clientId;
+
+		private Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try (Socket s = socket) {
+				DataInputStream in = new DataInputStream(s.getInputStream());
+				while (true) {
+					int header = in.readUnsignedByte();
+					int length = 0;
+					for (int shift = 0;; shift += 7) {
+						int b = in.readUnsignedByte();
+						length |= (b & 0x7F) << shift;
+						if ((b & 0x80) == 0)
+							break;
+					}
+					byte[] body = new byte[length];
+					in.readFully(body);
+					if (!handle(header, new DataInputStream(new ByteArrayInputStream(body)), length))
+						return;
+				}
+			} catch (IOException e) {
+				// closed
+			} finally {
+				connections.remove(this);
+			}
+		}
+
+		private boolean handle(int header, DataInputStream body, int length) throws IOException {
+			switch (header >> 4) {
+			case 1: // CONNECT
+				body.skipBytes(body.readUnsignedShort() + 4);
+				clientId = readString(body);
+				clientIds.add(clientId);
+				connections.add(this);
+				write(0x20, new byte[] { 0, 0 });
+				return true;
+			case 3: // PUBLISH
+				int qos = (header >> 1) & 0x3;
+				String topic = readString(body);
+				int remaining = length - 2 - topic.getBytes(StandardCharsets.UTF_8).length;
+				int id = 0;
+				if (qos > 0) {
+					id = body.readUnsignedShort();
+					remaining -= 2;
+				}
+				byte[] payload = new byte[remaining];
+				body.readFully(payload);
+				published.add(new Message(clientId, topic, new String(payload, StandardCharsets.UTF_8), qos));
+				route(topic, payload);
+				if (qos > 0)
+					acknowledge(this, id);
+				return true;
+			case 8: // SUBSCRIBE
+				id = body.readUnsignedShort();
+				ByteArrayOutputStream granted = new ByteArrayOutputStream();
+				granted.write(id >> 8);
+				granted.write(id);
+				while (body.available() > 0) {
+					filters.add(readString(body));
+					granted.write(Math.min(body.readUnsignedByte(), 1));
+				}
+				write(0x90, granted.toByteArray());
+				return true;
+			case 10: // UNSUBSCRIBE
+				id = body.readUnsignedShort();
+				while (body.available() > 0)
+					filters.remove(readString(body));
+				write(0xB0, new byte[] { (byte) (id >> 8), (byte) id });
+				return true;
+			case 12: // PINGREQ
+				write(0xD0, new byte[0]);
+				return true;
+			case 14: // DISCONNECT
+				return false;
+			default:
+				// acknowledgements of messages passed with QoS 0 don't occur
+				return true;
+			}
+		}
+
+		private synchronized void write(int header, byte[] body) throws IOException {
+			OutputStream out = socket.getOutputStream();
+			out.write(header);
+			int length = body.length;
+			do {
+				int b = length & 0x7F;
+				length >>= 7;
+				out.write(length > 0 ? b | 0x80 : b);
+			} while (length > 0);
+			out.write(body);
+			out.flush();
+		}
+
+		private void publish(String topic, byte[] payload) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try {
+				writeString(new DataOutputStream(body), topic);
+				body.write(payload);
+				write(0x30, body.toByteArray());
+			} catch (IOException e) {
+				// connection is closed
+			}
+		}
+	}
+
+	private final ServerSocket server;
+	private final List<Connection> connections = new CopyOnWriteArrayList<>();
+	private final AtomicInteger accepted = new AtomicInteger();
+	private final AtomicInteger turn = new AtomicInteger();
+	private final List<Object[]> held = new ArrayList<>();
+	private boolean holding;
+
+	/**
+	 * Client IDs of all connections in order
+	 */
+	final List<String> clientIds = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Messages published by the clients
+	 */
+	final BlockingQueue<Message> published = new LinkedBlockingQueue<>();
+
+	MqttBroker() throws IOException {
+		server = new ServerSocket(0);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = server.accept();
+						accepted.incrementAndGet();
+						new Thread(new Connection(socket)).start();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}).start();
+	}
+
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return the number of accepted connections
+	 */
+	int getConnections() {
+		return accepted.get();
+	}
+
+	/**
+	 * Hold back the acknowledgements of published messages
+	 */
+	synchronized void hold() {
+		holding = true;
+	}
+
+	/**
+	 * Send the acknowledgements held back and acknowledge immediately again
+	 */
+	synchronized void release() throws IOException {
+		holding = false;
+		for (Object[] ack : held)
+			((Connection) ack[0]).write(0x40, new byte[] { (byte) ((int) ack[1] >> 8), (byte) (int) ack[1] });
+		held.clear();
+	}
+
+	private synchronized void acknowledge(Connection connection, int id) throws IOException {
+		if (holding)
+			held.add(new Object[] { connection, id });
+		else
+			connection.write(0x40, new byte[] { (byte) (id >> 8), (byte) id });
+	}
+
+	private void route(String topic, byte[] payload) {
+		Map<String, List<Connection>> groups = new LinkedHashMap<>();
+		for (Connection connection : connections) {
+			boolean matched = false;
+			for (String filter : connection.filters) {
+				if (filter.startsWith("$share/")) {
+					String shared = filter.substring(filter.indexOf('/', 7) + 1);
+					if (MqttTopic.isMatched(shared, topic)) {
+						List<Connection> members = groups.get(filter);
+						if (members == null)
+							groups.put(filter, members = new ArrayList<>());
+						members.add(connection);
+					}
+				} else if (MqttTopic.isMatched(filter, topic)) {
+					matched = true;
+				}
+			}
+			if (matched)
+				connection.publish(topic, payload);
+		}
+		for (List<Connection> members : groups.values())
+			members.get(turn.getAndIncrement() % members.size()).publish(topic, payload);
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		byte[] bytes = new byte[stream.readUnsignedShort()];
+		stream.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream stream, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		stream.writeShort(bytes.length);
+		stream.write(bytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		for (Connection connection : connections)
+			connection.socket.close();
+	}
+}